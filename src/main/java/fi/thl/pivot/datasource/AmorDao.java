@@ -1,13 +1,15 @@
 package fi.thl.pivot.datasource;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,8 +22,6 @@ import org.springframework.stereotype.Component;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -109,10 +109,18 @@ public class AmorDao {
 
         @Override
         public HydraSource apply(Report input) {
-            HydraSource source = new JDBCSource(createHydraName(input), input.getFact(), jdbcTemplate.getDataSource(),
+            JDBCSource source = new JDBCSource(createHydraName(input), input.getFact(), jdbcTemplate.getDataSource(),
                     queries, createFactName(input),
                     createTreeName(input), createMetaName(input), schema);
             source.setRunDate(input.getAdded());
+            source.setCellPushDown(cellPushDown);
+            if (!snapshotDirectory.isEmpty()) {
+                source.setMetadataSnapshot(new MetadataSnapshot(new File(snapshotDirectory)));
+            }
+            if (!factCacheDirectory.isEmpty()) {
+                source.setFactCache(new FactCache(new File(factCacheDirectory)));
+            }
+            source.setMetadataLoader(metadataLoader);
             return source;
         }
 
@@ -124,12 +132,69 @@ public class AmorDao {
     @Value("#{'${database.environment.schema}'}")
     private String schema;
 
+    /**
+     * Whether cubes load only the facts shown in the requested table
+     */
+    @Value("${database.pushdown:false}")
+    private boolean cellPushDown;
+
+    /**
+     * Directory where snapshots of loaded metadata are stored, snapshots are
+     * not used if empty
+     */
+    @Value("${metadata.snapshot.dir:}")
+    private String snapshotDirectory;
+
+    /**
+     * Directory where facts of each run are cached, facts are always loaded
+     * from the database if empty
+     */
+    @Value("${fact.cache.dir:}")
+    private String factCacheDirectory;
+
     @Autowired
     @Qualifier("queries")
     private Properties queries;
 
-    private Cache<String, HydraSource> sourceCache = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES)
-            .build();
+    @Autowired
+    @Qualifier("metadataLoader")
+    private ExecutorService metadataLoader;
+
+    private SourceRegistry registry;
+
+    /**
+     * Creates the registry of sources and latest runs
+     * 
+     * @param maximumNodes
+     *            The total number of dimension nodes kept in memory
+     * @param refreshSeconds
+     *            How often the latest run of a cube is resolved
+     * @param refreshExecutor
+     *            Executor that resolves latest runs in the background
+     */
+    @Autowired
+    void createRegistry(@Value("${cache.source.nodes:2000000}") long maximumNodes,
+            @Value("${cache.latest.seconds:60}") long refreshSeconds, @Qualifier("sourceRefreshExecutor") Executor refreshExecutor) {
+        this.registry = new SourceRegistry(new SourceRegistry.Loader() {
+
+            @Override
+            public String loadLatestRun(String environment, String subject, String hydra, String fact) {
+                Report r = loadLatestReport(environment, subject, hydra, fact);
+                return r == null ? "0" : r.getRunId();
+            }
+
+            @Override
+            public HydraSource loadSource(String environment, String subject, String hydra, String fact, String runId) {
+                List<HydraSource> sources = jdbcTemplate.query(String.format(queries.getProperty("list-sources"), schema),
+                        new ResultSetToSource(), subject, hydra, fact, Long.parseLong(runId), environment);
+                if (sources.size() == 1) {
+                    sources.get(0).setRunId(runId);
+                    return sources.get(0);
+                }
+                return null;
+            }
+        }, maximumNodes, refreshSeconds, refreshExecutor);
+    }
 
     @AuditedMethod
     public List<Report> listReports(String environment) {
@@ -253,31 +318,27 @@ public class AmorDao {
         String latestRunId = determineReportVersion(environment, params);
         id = id.replaceAll("latest", latestRunId);
 
-        HydraSource cached = sourceCache.getIfPresent(id);
-        if (null != cached) {
-            return cached;
+        HydraSource source = registry.getSource(environment, params[0], params[1], params[2], latestRunId);
+        if (null == source) {
+            LOG.warn("Could not find cube " + id);
         }
+        return source;
+    }
 
-        List<HydraSource> sources = jdbcTemplate.query(String.format(queries.getProperty("list-sources"), schema),
-                new ResultSetToSource(), params[0],
-                params[1], params[2], Long.parseLong(latestRunId), environment);
-
-        if (sources.size() == 1) {
-            sourceCache.put(id, sources.get(0));
-            sources.get(0).setRunId(latestRunId);
-            return sources.get(0);
-        }
-
-        LOG.warn("Could not find cube " + id);
-
-        return null;
+    /**
+     * Updates the memory estimate of a source once its metadata has been
+     * loaded
+     * 
+     * @param source
+     */
+    public void metadataLoaded(HydraSource source) {
+        registry.metadataLoaded(source);
     }
 
     private String determineReportVersion(final String environment, String[] params) {
         String latestRunId;
         if (params.length < 4 || "latest".equals(params[3])) {
-            Report r = loadLatestReport(environment, params[0], params[1], params[2]);
-            latestRunId = r == null ? "0" : r.getRunId();
+            latestRunId = registry.getLatestRun(environment, params[0], params[1], params[2]);
         } else {
             latestRunId = params[3];
         }
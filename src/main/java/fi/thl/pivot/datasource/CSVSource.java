@@ -17,6 +17,7 @@ import org.supercsv.prefs.CsvPreference;
 import com.google.common.collect.Lists;
 import com.google.common.io.Closeables;
 
+import fi.thl.pivot.model.ColumnarDataset;
 import fi.thl.pivot.model.Dataset;
 import fi.thl.pivot.model.Dimension;
 import fi.thl.pivot.model.DimensionLevel;
@@ -134,7 +135,7 @@ public class CSVSource extends HydraSource {
 
     @Override
     protected Dataset loadDataInner() {
-        final Dataset newDataSet = new Dataset();
+        final Dataset newDataSet = new ColumnarDataset();
         CsvMapReader reader = null;
         try {
             reader = new CsvMapReader(new FileReader(factSource), CsvPreference.EXCEL_NORTH_EUROPE_PREFERENCE);
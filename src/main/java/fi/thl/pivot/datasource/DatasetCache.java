@@ -0,0 +1,183 @@
+package fi.thl.pivot.datasource;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import fi.thl.pivot.model.Dataset;
+import fi.thl.pivot.model.DimensionNode;
+import fi.thl.pivot.model.PivotLevel;
+
+/**
+ * Process wide cache of datasets loaded for cube requests. Hydra runs are
+ * immutable so a dataset loaded for a run never changes and entries never have
+ * to be invalidated. A new run gets new keys and the datasets of old runs are
+ * evicted like any other entry. Entries are weighed by their estimated size and
+ * the least recently used entries are evicted when the memory budget is
+ * exceeded.
+ *
+ */
+@Component
+public class DatasetCache {
+
+    /**
+     * Identifies a dataset by the run and source it was loaded from and a
+     * normalized description of the request
+     */
+    public static final class Key {
+        private final String runId;
+        private final String source;
+        private final String request;
+
+        private Key(String runId, String source, String request) {
+            this.runId = runId;
+            this.source = source;
+            this.request = request;
+        }
+
+        public String getRunId() {
+            return runId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(runId, source, request);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return runId.equals(other.runId) && source.equals(other.source) && request.equals(other.request);
+        }
+
+        @Override
+        public String toString() {
+            return runId + "/" + source + "/" + request;
+        }
+    }
+
+    /**
+     * Builds a normalized key where the order of nodes in sets of nodes does
+     * not matter
+     */
+    public static final class KeyBuilder {
+        private final String runId;
+        private final String source;
+        private final StringBuilder request = new StringBuilder();
+
+        private KeyBuilder(String runId, String source, String mode) {
+            this.runId = runId;
+            this.source = source;
+            this.request.append(mode);
+        }
+
+        public KeyBuilder add(String name, boolean value) {
+            request.append('|').append(name).append('=').append(value ? '1' : '0');
+            return this;
+        }
+
+        /**
+         * Adds a set of nodes in which order is not significant
+         */
+        public KeyBuilder addNodes(String name, Collection<DimensionNode> nodes) {
+            int[] ids = new int[nodes.size()];
+            int i = 0;
+            for (DimensionNode node : nodes) {
+                ids[i++] = node.getSurrogateId();
+            }
+            Arrays.sort(ids);
+            request.append('|').append(name).append('=');
+            for (i = 0; i < ids.length; ++i) {
+                // Duplicates do not change the result
+                if (i == 0) {
+                    request.append(ids[i]);
+                } else if (ids[i] != ids[i - 1]) {
+                    request.append(',').append(ids[i]);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Adds the header levels of a pivot in which the order of the levels
+         * and the nodes within the level is significant
+         */
+        public KeyBuilder addLevels(String name, List<PivotLevel> levels) {
+            request.append('|').append(name).append('=');
+            for (PivotLevel level : levels) {
+                request.append('[');
+                for (Iterator<DimensionNode> it = level.iterator(); it.hasNext();) {
+                    request.append(it.next().getSurrogateId());
+                    if (it.hasNext()) {
+                        request.append(',');
+                    }
+                }
+                request.append(Boolean.TRUE.equals(level.isTotalIncluded()) ? "]t" : "]");
+            }
+            return this;
+        }
+
+        public Key build() {
+            return new Key(runId, source, request.toString());
+        }
+    }
+
+    private final Cache<Key, Dataset> cache;
+
+    @Autowired
+    public DatasetCache(@Value("${cache.dataset.bytes:268435456}") long maximumBytes) {
+        this.cache = CacheBuilder.newBuilder().maximumWeight(maximumBytes).weigher(new Weigher<Key, Dataset>() {
+            @Override
+            public int weigh(Key key, Dataset value) {
+                return (int) Math.min(Integer.MAX_VALUE, value.estimateSize() + key.request.length() * 2);
+            }
+        }).build();
+    }
+
+    /**
+     * Returns true if datasets of the source may be cached. Only sources that
+     * are identified by a run may be cached.
+     */
+    public static boolean isCacheable(HydraSource source) {
+        return null != source.getRunid() && null != source.getId();
+    }
+
+    /**
+     * Starts a key for a dataset loaded from the source in the given mode
+     */
+    public static KeyBuilder key(HydraSource source, String mode) {
+        return new KeyBuilder(source.getRunid(), source.getId(), mode);
+    }
+
+    /**
+     * Returns the cached dataset or loads it using the loader. Concurrent
+     * requests for the same key wait for a single load.
+     */
+    public Dataset get(Key key, Callable<Dataset> loader) {
+        try {
+            return cache.get(key, loader);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package fi.thl.pivot.datasource;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Logger;
+
+import fi.thl.pivot.model.ColumnarDataset;
+import fi.thl.pivot.model.MappedDataset;
+
+/**
+ * Stores all facts of a source in a local file that is memory mapped and used
+ * instead of the database. Facts of a run never change so the file is written
+ * once when the facts are first needed and never updated.
+ *
+ */
+final class FactCache {
+
+    private static final Logger LOG = Logger.getLogger(FactCache.class);
+
+    private static final String SUFFIX = ".facts";
+
+    private final File directory;
+
+    FactCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Maps the facts of the source. If the facts have not been cached yet, or
+     * were cached in an older format, they are loaded with the loader and
+     * written to the cache first.
+     *
+     * @return the facts or null if the facts could not be cached
+     */
+    MappedDataset open(HydraSource source, Callable<ColumnarDataset> loader) {
+        File file = new File(directory, source.getId() + SUFFIX);
+        try {
+            if (file.isFile()) {
+                try {
+                    return map(file);
+                } catch (IllegalArgumentException e) {
+                    LOG.info("Replacing facts cached in an older format " + file);
+                }
+            }
+            write(file, loader.call());
+            return map(file);
+        } catch (Exception e) {
+            LOG.warn("Could not use cached facts " + file, e);
+            return null;
+        }
+    }
+
+    private void write(File file, ColumnarDataset facts) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))) {
+                facts.writeTo(out);
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            LOG.info("Cached " + facts.size() + " facts in " + file);
+        } finally {
+            if (temporary.exists() && !temporary.delete()) {
+                LOG.warn("Could not remove " + temporary);
+            }
+        }
+    }
+
+    private MappedDataset map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Fact file is too large to be mapped");
+            }
+            // The mapping stays valid after the channel is closed
+            return new MappedDataset(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package fi.thl.pivot.datasource;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.SqlProvider;
+
+import com.google.common.collect.Multimap;
+
+/**
+ * A fact query where the nodes of each restricted dimension are bound as a
+ * single array parameter instead of being formatted into the statement. The
+ * statement text only depends on the fact table and the set of restricted
+ * dimensions so the same prepared statement and query plan can be reused for
+ * any combination of nodes.
+ *
+ */
+class FactQuery implements PreparedStatementCreator, SqlProvider {
+
+    /**
+     * Array element type used when the type of a key column is not known
+     */
+    private static final String DEFAULT_KEY_TYPE = "varchar";
+
+    private final String sql;
+    private final List<String> dimensions;
+    private final Multimap<String, String> conditions;
+    private final Map<String, String> keyColumnTypes;
+
+    /**
+     * @param sql
+     *            statement with one array parameter for each dimension
+     * @param dimensions
+     *            restricted dimensions in the order of the parameters
+     * @param conditions
+     *            allowed node ids of each dimension
+     * @param keyColumnTypes
+     *            database type names of the key columns
+     */
+    FactQuery(String sql, List<String> dimensions, Multimap<String, String> conditions, Map<String, String> keyColumnTypes) {
+        this.sql = sql;
+        this.dimensions = dimensions;
+        this.conditions = conditions;
+        this.keyColumnTypes = keyColumnTypes;
+    }
+
+    @Override
+    public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+        PreparedStatement ps = con.prepareStatement(sql);
+        try {
+            int parameter = 1;
+            for (String dimension : dimensions) {
+                Collection<String> ids = conditions.get(dimension);
+                Array array = con.createArrayOf(keyColumnType(dimension), ids.toArray(new String[ids.size()]));
+                ps.setArray(parameter++, array);
+            }
+        } catch (SQLException e) {
+            ps.close();
+            throw e;
+        }
+        return ps;
+    }
+
+    @Override
+    public String getSql() {
+        return sql;
+    }
+
+    @Override
+    public String toString() {
+        return sql + " " + conditions;
+    }
+
+    private String keyColumnType(String dimension) {
+        String type = keyColumnTypes.get(dimension + "_key");
+        return null == type ? DEFAULT_KEY_TYPE : type;
+    }
+}
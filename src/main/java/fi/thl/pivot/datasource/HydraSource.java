@@ -1,5 +1,6 @@
 package fi.thl.pivot.datasource;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -7,29 +8,47 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 import org.springframework.util.StopWatch;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.UncheckedTimeoutException;
 
 import fi.thl.pivot.model.Dataset;
 import fi.thl.pivot.model.Dimension;
 import fi.thl.pivot.model.DimensionLevel;
 import fi.thl.pivot.model.DimensionNode;
 import fi.thl.pivot.model.Label;
+import fi.thl.pivot.model.LabelStore;
+import fi.thl.pivot.model.MetadataCodec;
+import fi.thl.pivot.model.ModifiablePivot;
 import fi.thl.pivot.model.Query;
 import fi.thl.pivot.model.Tuple;
 import fi.thl.pivot.util.Constants;
+import fi.thl.pivot.util.LongIntHashMap;
 
 /**
  * <p>
@@ -61,6 +80,11 @@ public abstract class HydraSource {
     private static final String PREDICATE_CODE = "code";
     private static final String PREDICATE_DECIMALS = "decimals";
 
+    /**
+     * Language used when the cube has no labels in the requested language
+     */
+    private static final String DEFAULT_LANGUAGE = "fi";
+
     /**
      * This callback handler is used when traversing the hydra metadata tree.
      * The implementer is expected to provide implementations that provide
@@ -79,6 +103,7 @@ public abstract class HydraSource {
         private final Map<String, DimensionLevel> dimensionLevels;
         private final Map<String, DimensionNode> nodesByRef;
         private final Map<String, DimensionLevel> currentLevel;
+        private final LabelStore labels = new LabelStore();
 
         protected TreeRowCallbackHandler(Map<String, Dimension> dimensions, Map<String, DimensionNode> nodes, Map<String, DimensionNode> nodesByRef,
                 Map<String, DimensionLevel> dimensionLevels) {
@@ -130,7 +155,7 @@ public abstract class HydraSource {
                 if (LOG.isTraceEnabled()) {
                     LOG.trace("Adding node " + getMetaReference() + " to " + dimension + "-" + dimensionLevel + ": " + nodeLevel);
                 }
-                node = nodeLevel.createNode(getNodeId(), new Label(), nodes.get(getParentId()));
+                node = nodeLevel.createNode(getNodeId(), labels.create(), nodes.get(getParentId()));
             }
             node.setSurrogateId(getSurrogateId());
             nodes.put(getNodeId(), node);
@@ -196,13 +221,30 @@ public abstract class HydraSource {
     private Label name;
     private List<String> passwords = new ArrayList<>();
     private Set<String> languages = new TreeSet<>();
-    private Map<Integer, DimensionNode> nodeIndex;
+    private NodeIndex nodeIndex;
+    private LongIntHashMap numericNodeIndex;
+    private ListMultimap<String, DimensionNode> nodesByRef;
+    private ConcurrentMap<String, ListMultimap<String, DimensionNode>> nodesByName;
+    private ConcurrentMap<String, LabelSearchIndex> searchIndexes;
     private boolean isOpenData = true;
     private Date runDate;
     private String runid;
     private boolean denyCubeAccess;
     private String masterPassword;
     private Map<String, Label> predicates = new HashMap<>();
+    private MetadataSnapshot snapshot;
+
+    /**
+     * Loads the parts of cube metadata that do not depend on the dimension
+     * tree. Each part uses its own database connection.
+     */
+    private ExecutorService metadataLoader = MoreExecutors.newDirectExecutorService();
+
+    /**
+     * Held while metadata is loaded so that concurrent callers, e.g. a
+     * request and a background prefetch, never load the same source at once
+     */
+    private final ReentrantLock metadataLock = new ReentrantLock();
 
     protected HydraSource() {
     }
@@ -215,6 +257,15 @@ public abstract class HydraSource {
         return dataSet != null;
     }
 
+    /**
+     * Returns the number of nodes in the metadata or zero if metadata has not
+     * been loaded
+     */
+    public final int getNodeCount() {
+        Map<String, DimensionNode> loaded = nodes;
+        return null == loaded ? 0 : loaded.size();
+    }
+
     public final boolean isOpenData() {
         return isOpenData;
     }
@@ -261,11 +312,35 @@ public abstract class HydraSource {
      */
     public DimensionNode resolve(String nodeId) {
         Preconditions.checkNotNull(nodeId, "Node id must not be null");
-        Preconditions.checkArgument(nodeId.matches("^\\d+$"), "Node id must be numeric");
-        DimensionNode node = nodeIndex.get(Integer.parseInt(nodeId));
+        DimensionNode node = nodeIndex.get(parseSurrogateId(nodeId));
         return null == node ? getNode(nodeId) : node;
     }
 
+    /**
+     * Parses a non-negative decimal integer. Node ids are parsed for every
+     * node referenced in a request so the id is parsed by hand instead of
+     * validating it with a regular expression first.
+     * 
+     * @throws IllegalArgumentException
+     *             if the id is not numeric or does not fit in an int
+     */
+    private static int parseSurrogateId(String nodeId) {
+        int length = nodeId.length();
+        Preconditions.checkArgument(length > 0, "Node id must be numeric");
+        long value = 0;
+        for (int i = 0; i < length; ++i) {
+            int digit = nodeId.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Node id must be numeric");
+            }
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Node id is out of range: " + nodeId);
+            }
+        }
+        return (int) value;
+    }
+
     public boolean isProtected() {
         return !passwords.isEmpty();
     }
@@ -278,7 +353,50 @@ public abstract class HydraSource {
         return password.equals(masterPassword);
     }
 
+    /**
+     * Loads the metadata of the source unless it is already loaded. Callers
+     * that arrive while the metadata is being loaded wait for that load
+     * instead of loading the metadata again.
+     */
     public final void loadMetadata() {
+        metadataLock.lock();
+        try {
+            loadMetadataOnce();
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+    /**
+     * Loads the metadata as {@link #loadMetadata()} but waits at most the
+     * timeout for a load in progress
+     * 
+     * @throws UncheckedTimeoutException
+     *             if the load in progress does not complete in time
+     */
+    public final void loadMetadata(long timeout, TimeUnit unit) {
+        try {
+            if (!metadataLock.tryLock(timeout, unit)) {
+                throw new UncheckedTimeoutException("Timed out waiting for metadata of " + getId());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+        try {
+            loadMetadataOnce();
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+    private void loadMetadataOnce() {
+        if (isMetadataLoaded()) {
+            return;
+        }
+        if (null != snapshot && snapshot.read(this)) {
+            return;
+        }
 
         final StopWatch watch = new StopWatch();
 
@@ -289,37 +407,63 @@ public abstract class HydraSource {
         final Map<String, List<Property>> propertiesByRef = Maps.newHashMap();
         final List<String> newDimensionColumns = Lists.newArrayList();
 
-        watch.start("load fact metadata");
-        assignFactMetaData(loadFactMetadata());
-        watch.stop();
-
-        watch.start("load fact dimension metadata");
-        loadFactDimensionMetadata(newDimensionColumns);
-        LOG.debug("Fact metadata loaded, found dimensions " + newDimensionColumns);
-        watch.stop();
+        // The fact metadata, fact columns and node metadata are independent of
+        // the dimension tree so they are loaded concurrently while the tree
+        // is loaded and parsed in this thread
+        Future<List<Tuple>> factMetadata = metadataLoader.submit(new Callable<List<Tuple>>() {
+            @Override
+            public List<Tuple> call() {
+                return loadFactMetadata();
+            }
+        });
+        Future<?> factDimensionMetadata = metadataLoader.submit(new Runnable() {
+            @Override
+            public void run() {
+                loadFactDimensionMetadata(newDimensionColumns);
+            }
+        });
+        Future<?> nodeMetadata = metadataLoader.submit(new Runnable() {
+            @Override
+            public void run() {
+                loadMetadata(propertiesByRef);
+            }
+        });
 
-        watch.start("load nodes");
-        loadNodes(newDimensions, dimensionLevels, newNodes, nodesByRef);
-        LOG.debug(String.format("Dimension tree read from %s found %d dimensions, %d levels and %d nodes", getTreeSource(), newDimensions.size(),
-                dimensionLevels.size(), newNodes.size()));
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("dimensions: " + newDimensions);
-            LOG.trace("dimensionLevels: " + dimensionLevels);
+        try {
+            watch.start("load nodes");
+            loadNodes(newDimensions, dimensionLevels, newNodes, nodesByRef);
+            LOG.debug(String.format("Dimension tree read from %s found %d dimensions, %d levels and %d nodes", getTreeSource(), newDimensions.size(),
+                    dimensionLevels.size(), newNodes.size()));
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("dimensions: " + newDimensions);
+                LOG.trace("dimensionLevels: " + dimensionLevels);
+            }
+            watch.stop();
+
+            watch.start("wait for fact metadata");
+            assignFactMetaData(await(factMetadata));
+            await(factDimensionMetadata);
+            LOG.debug("Fact metadata loaded, found dimensions " + newDimensionColumns);
+            watch.stop();
+
+            watch.start("log nodes without metadata");
+            logColumnsWithNoMetadata(newDimensions, newDimensionColumns);
+            watch.stop();
+
+            watch.start("drop unused dimensions");
+            dropDimensionsNotUsedInTheCube(newDimensions, newDimensionColumns);
+            watch.stop();
+
+            watch.start("wait for metadata");
+            await(nodeMetadata);
+            LOG.debug("Loaded " + propertiesByRef.size() + " metadata entries ");
+            watch.stop();
+        } catch (RuntimeException | Error e) {
+            factMetadata.cancel(true);
+            factDimensionMetadata.cancel(true);
+            nodeMetadata.cancel(true);
+            throw e;
         }
-        watch.stop();
-
-        watch.start("log nodes without metadata");
-        logColumnsWithNoMetadata(newDimensions, newDimensionColumns);
-        watch.stop();
-
-        watch.start("drop unused dimensions");
-        dropDimensionsNotUsedInTheCube(newDimensions, newDimensionColumns);
-        watch.stop();
-
-        watch.start("load metadata");
-        loadMetadata(propertiesByRef);
-        LOG.debug("Loaded " + propertiesByRef.size() + " metadata entries ");
-        watch.stop();
 
         watch.start("assign metadata");
         assignMetadata(newDimensions, nodesByRef, propertiesByRef);
@@ -336,20 +480,177 @@ public abstract class HydraSource {
 
         watch.stop();
 
-        Map<Integer, DimensionNode> newNodeIndex = Maps.newHashMap();
-        for (DimensionNode node : newNodes.values()) {
-            newNodeIndex.put(node.getSurrogateId(), node);
+        publishMetadata(sorted, newNodes, newDimensionColumns);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Cube name loaded: " + watch.prettyPrint());
+        }
+
+        if (null != snapshot) {
+            snapshot.write(this);
+        }
+    }
+
+    /**
+     * Makes loaded metadata visible. Metadata is considered loaded once the
+     * dimensions are assigned so they are assigned first. Dimension trees are
+     * indexed here as both loaded and restored trees are complete and sorted
+     * at this point.
+     */
+    private void publishMetadata(Map<String, Dimension> newDimensions, Map<String, DimensionNode> newNodes, List<String> newColumns) {
+        for (Dimension dimension : newDimensions.values()) {
+            if (null != dimension) {
+                dimension.indexHierarchy();
+            }
         }
 
-        this.dimensions = sorted;
         this.nodes = newNodes;
-        this.columns = newDimensionColumns;
-        this.nodeIndex = newNodeIndex;
+        this.columns = newColumns;
+        this.nodeIndex = new NodeIndex(newNodes.values());
+        this.nodesByRef = indexNodesByRef(newDimensions.values());
+        this.nodesByName = new ConcurrentHashMap<>();
+        this.searchIndexes = new ConcurrentHashMap<>();
+        this.numericNodeIndex = indexNumericNodeIds(newNodes);
+        this.dimensions = newDimensions;
+    }
 
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Cube name loaded: " + watch.prettyPrint());
+    /**
+     * Stores and restores metadata of the source using the given snapshot
+     * store. If set, metadata is restored from a snapshot instead of loaded
+     * when a snapshot exists and a snapshot is written after each load.
+     */
+    void setMetadataSnapshot(MetadataSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Sets the executor that loads the parts of the metadata that do not
+     * depend on the dimension tree while the tree is loaded. If not set the
+     * parts are loaded in the calling thread.
+     */
+    void setMetadataLoader(ExecutorService metadataLoader) {
+        this.metadataLoader = metadataLoader;
+    }
+
+    /**
+     * Writes the loaded metadata including nodes that are not accessible with
+     * the current role
+     */
+    void writeSnapshot(MetadataCodec.Writer out) throws IOException {
+        Set<Dimension> allDimensions = new LinkedHashSet<>();
+        for (Dimension d : dimensions.values()) {
+            if (null != d) {
+                allDimensions.add(d);
+            }
+        }
+        for (DimensionNode node : nodes.values()) {
+            allDimensions.add(node.getDimension());
+        }
+        out.writeDimensions(allDimensions);
+
+        // Columns without a dimension are kept as null values
+        out.writeInt(dimensions.size());
+        for (Map.Entry<String, Dimension> d : dimensions.entrySet()) {
+            out.writeString(d.getKey());
+            out.writeString(null == d.getValue() ? null : d.getValue().getId());
         }
+        out.writeInt(nodes.size());
+        for (Map.Entry<String, DimensionNode> node : nodes.entrySet()) {
+            out.writeString(node.getKey());
+            out.writeNodeReference(node.getValue());
+        }
+        out.writeStrings(columns);
+
+        out.writeLabel(name);
+        out.writeStrings(passwords);
+        out.writeString(masterPassword);
+        out.writeStrings(languages);
+        out.writeBoolean(isOpenData);
+        out.writeBoolean(denyCubeAccess);
+        out.writeLabels(predicates);
+
+        Map<String, String> sourceMetadata = getSourceMetadata();
+        out.writeInt(sourceMetadata.size());
+        for (Map.Entry<String, String> e : sourceMetadata.entrySet()) {
+            out.writeString(e.getKey());
+            out.writeString(e.getValue());
+        }
+    }
+
+    /**
+     * Restores metadata written with {@link #writeSnapshot(MetadataCodec.Writer)}.
+     * The whole snapshot is decoded before any field is assigned so that a
+     * snapshot that cannot be read leaves the source untouched.
+     */
+    void readSnapshot(MetadataCodec.Reader in) {
+        Map<String, Dimension> allDimensions = Maps.newHashMap();
+        for (Dimension d : in.readDimensions()) {
+            allDimensions.put(d.getId(), d);
+        }
+
+        Map<String, Dimension> newDimensions = Maps.newLinkedHashMap();
+        for (int i = in.readInt(); i > 0; --i) {
+            String key = in.readString();
+            String id = in.readString();
+            newDimensions.put(key, null == id ? null : allDimensions.get(id));
+        }
+        Map<String, DimensionNode> newNodes = Maps.newHashMap();
+        for (int i = in.readInt(); i > 0; --i) {
+            String key = in.readString();
+            newNodes.put(key, in.readNodeReference());
+        }
+        List<String> newColumns = in.readStrings();
+
+        Label newName = in.readLabel();
+        List<String> newPasswords = in.readStrings();
+        String newMasterPassword = in.readString();
+        Set<String> newLanguages = new TreeSet<>(in.readStrings());
+        boolean newIsOpenData = in.readBoolean();
+        boolean newDenyCubeAccess = in.readBoolean();
+        Map<String, Label> newPredicates = in.readLabels();
+
+        Map<String, String> sourceMetadata = Maps.newHashMap();
+        for (int i = in.readInt(); i > 0; --i) {
+            String key = in.readString();
+            sourceMetadata.put(key, in.readString());
+        }
+
+        this.name = newName;
+        this.passwords = newPasswords;
+        this.masterPassword = newMasterPassword;
+        this.languages = newLanguages;
+        this.isOpenData = newIsOpenData;
+        this.denyCubeAccess = newDenyCubeAccess;
+        this.predicates = newPredicates;
+        restoreSourceMetadata(sourceMetadata);
+
+        publishMetadata(newDimensions, newNodes, newColumns);
+    }
+
+    /**
+     * Returns metadata specific to the type of the source that is loaded with
+     * the rest of the metadata and must be stored in snapshots
+     */
+    protected Map<String, String> getSourceMetadata() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Restores metadata returned by {@link #getSourceMetadata()} when metadata
+     * is restored from a snapshot
+     */
+    protected void restoreSourceMetadata(Map<String, String> metadata) {
+    }
 
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
     }
 
     private void assignFactMetaData(List<Tuple> metadata) {
@@ -419,6 +720,14 @@ public abstract class HydraSource {
         return dimensions.values();
     }
 
+    /**
+     * Returns an identifier of the source. Sources of different runs of the
+     * same fact have different identifiers.
+     */
+    public String getId() {
+        return getFactSource();
+    }
+
     public final boolean isBasedOn(String cube) {
         return getFactSource().equals(cube);
     }
@@ -428,6 +737,53 @@ public abstract class HydraSource {
         return nodes.get(id);
     }
 
+    /**
+     * Returns the node with the given surrogate id or null if no such node
+     * exists
+     */
+    protected final DimensionNode getNode(int surrogateId) {
+        return nodeIndex.get(surrogateId);
+    }
+
+    /**
+     * Returns true if every node id of the cube is the canonical string
+     * representation of a long. In that case facts can be mapped to surrogate
+     * ids using {@link #getSurrogateId(long)} without reading each key as a
+     * string.
+     */
+    protected final boolean hasNumericNodeIds() {
+        return null != numericNodeIndex;
+    }
+
+    /**
+     * Returns the surrogate id of the node with the given numeric id or
+     * {@link LongIntHashMap#NOT_FOUND} if no such node exists.
+     * 
+     * @see #hasNumericNodeIds()
+     */
+    protected final int getSurrogateId(long id) {
+        return numericNodeIndex.get(id);
+    }
+
+    private static LongIntHashMap indexNumericNodeIds(Map<String, DimensionNode> nodes) {
+        LongIntHashMap index = new LongIntHashMap(nodes.size());
+        for (Map.Entry<String, DimensionNode> e : nodes.entrySet()) {
+            Long id = parseCanonicalLong(e.getKey());
+            if (null == id) {
+                return null;
+            }
+            index.put(id, e.getValue().getSurrogateId());
+        }
+        return index;
+    }
+
+    private static Long parseCanonicalLong(String id) {
+        if (!id.matches("^-?[1-9]\\d{0,17}$|^0$")) {
+            return null;
+        }
+        return Long.parseLong(id);
+    }
+
     protected final List<String> getColumns() {
         return columns;
     }
@@ -462,6 +818,33 @@ public abstract class HydraSource {
 
     public abstract Dataset loadSubset(Query queryNodes, List<DimensionNode> filter, boolean showValueTypes);
 
+    /**
+     * Returns true if the source is able to load only the facts shown in a
+     * pivot using {@link #loadCells(ModifiablePivot, boolean)}
+     */
+    public boolean isCellPushDownSupported() {
+        return false;
+    }
+
+    /**
+     * Should load the facts of the cells of the pivot and nothing else. Only
+     * called for sources that return true from
+     * {@link #isCellPushDownSupported()}.
+     * 
+     * @param pivot
+     *            Pivot whose rows, columns and constants have been defined
+     * @param showValueTypes
+     *            Whether confidence intervals and sample sizes of the cells
+     *            should be loaded
+     * @return A dataset that contains exactly the facts shown in the pivot
+     * @see ModifiablePivot#visitCellKeys(fi.thl.pivot.model.ModifiablePivot.CellKeyVisitor,
+     *      boolean)
+     */
+    public Dataset loadCells(ModifiablePivot pivot, boolean showValueTypes) {
+        throw new IllegalStateException("Source " + getId()
+                + " does not load cells of a pivot, call loadCells only when isCellPushDownSupported() returns true");
+    }
+
     /**
      * Should apply metadata to the given set of dimensions
      * 
@@ -668,52 +1051,123 @@ public abstract class HydraSource {
         return Collections.unmodifiableSet(languages);
     }
 
+    /**
+     * Resolves the language to one of the languages of the cube. Finnish is
+     * used if the cube has no labels in the language and the first language
+     * of the cube if it has no Finnish labels either.
+     */
+    public String resolveLanguage(String language) {
+        Set<String> cubeLanguages = languages;
+        if (null != language && cubeLanguages.contains(language)) {
+            return language;
+        }
+        if (cubeLanguages.isEmpty() || cubeLanguages.contains(DEFAULT_LANGUAGE)) {
+            return DEFAULT_LANGUAGE;
+        }
+        return cubeLanguages.iterator().next();
+    }
+
     public boolean isCubeAccessDenied() {
         return this.denyCubeAccess;
     }
 
     public DimensionNode findNodeByRef(String item) {
-        for (Dimension d : dimensions.values()) {
-            DimensionNode node = findNodeByRefInLevel(d.getRootLevel(), item);
-            if (node != null) {
-                return node;
-            }
+        return findAccessibleNode(nodesByRef.get(item));
+    }
+
+    /**
+     * Finds a node by its label in the given language. Labels of each
+     * language are indexed when the language is first used. Languages the
+     * cube does not have are resolved with {@link #resolveLanguage(String)}
+     * so that there is at most one index for each language of the cube.
+     */
+    public DimensionNode findNodeByName(String item, String requestedLanguage) {
+        String language = resolveLanguage(requestedLanguage);
+        ListMultimap<String, DimensionNode> index = nodesByName.get(language);
+        if (null == index) {
+            index = indexNodesByName(dimensions.values(), language);
+            nodesByName.put(language, index);
         }
-        return null;
+        return findAccessibleNode(index.get(item));
     }
 
-    public DimensionNode findNodeByName(String item, String language) {
-        for (Dimension d : dimensions.values()) {
-            DimensionNode node = findNodeByNameInLevel(d.getRootLevel(), item, language);
-            if (node != null) {
+    /**
+     * Indexes contain every node so that they do not depend on the role of
+     * the user that built them. Access is checked on each lookup instead.
+     */
+    private static DimensionNode findAccessibleNode(List<DimensionNode> candidates) {
+        for (DimensionNode node : candidates) {
+            if (node.canAccess()) {
                 return node;
             }
         }
         return null;
     }
 
-    private DimensionNode findNodeByRefInLevel(DimensionLevel level, String item) {
-        if (null == level) {
-            return null;
+    /**
+     * Finds nodes the current user may access whose label in the given
+     * language, or a word of the label, starts with the query. Labels of each
+     * language are indexed when the language is first searched. The index
+     * contains every node and visibility is checked for each match so the
+     * index can be shared by all roles. The language is resolved with
+     * {@link #resolveLanguage(String)}.
+     * 
+     * @param dimension
+     *            identifier of the dimension to search or null to search all
+     *            dimensions
+     * @param limit
+     *            maximum number of nodes returned
+     * @return matching nodes, label matches first
+     */
+    public List<DimensionNode> searchNodes(String query, String requestedLanguage, String dimension, int limit) {
+        Preconditions.checkNotNull(query, "Query must not be null");
+        String language = resolveLanguage(requestedLanguage);
+        LabelSearchIndex index = searchIndexes.get(language);
+        if (null == index) {
+            index = new LabelSearchIndex(listNodesInSearchOrder(dimensions.values()), language);
+            searchIndexes.put(language, index);
         }
-        for (DimensionNode n : level.getNodes()) {
-            if (item.equals(n.getReference())) {
-                return n;
+        return index.search(query, dimension, limit);
+    }
+
+    private static ListMultimap<String, DimensionNode> indexNodesByRef(Collection<Dimension> dimensions) {
+        ListMultimap<String, DimensionNode> index = ArrayListMultimap.create();
+        for (DimensionNode n : listNodesInSearchOrder(dimensions)) {
+            if (null != n.getReference()) {
+                index.put(n.getReference(), n);
             }
         }
-        return findNodeByRefInLevel(level.getChildLevel(), item);
+        return index;
     }
 
-    private DimensionNode findNodeByNameInLevel(DimensionLevel level, String item, String language) {
-        if (null == level) {
-            return null;
+    private static ListMultimap<String, DimensionNode> indexNodesByName(Collection<Dimension> dimensions, String language) {
+        ListMultimap<String, DimensionNode> index = ArrayListMultimap.create();
+        for (DimensionNode n : listNodesInSearchOrder(dimensions)) {
+            String name = n.getLabel().getValue(language);
+            if (null != name) {
+                index.put(name, n);
+            }
         }
-        for (DimensionNode n : level.getNodes()) {
-            if (item.equals(n.getLabel().getValue(language))) {
-                return n;
+        return index;
+    }
+
+    /**
+     * Lists all nodes regardless of the role of the user dimension by
+     * dimension and level by level so that the first accessible matching node
+     * in the list is the node that would be found first by a breadth first
+     * search of each dimension
+     */
+    private static List<DimensionNode> listNodesInSearchOrder(Collection<Dimension> dimensions) {
+        List<DimensionNode> nodes = new ArrayList<>();
+        for (Dimension d : dimensions) {
+            if (null == d) {
+                continue;
+            }
+            for (DimensionLevel level = d.getRootLevel(); null != level; level = level.getChildLevel()) {
+                nodes.addAll(level.getAllNodes());
             }
         }
-        return findNodeByNameInLevel(level.getChildLevel(), item, language);
+        return nodes;
     }
 
 }
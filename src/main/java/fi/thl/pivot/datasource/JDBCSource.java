@@ -1,41 +1,58 @@
 package fi.thl.pivot.datasource;
 
+import java.sql.Connection;
 import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.sql.DataSource;
 
 import org.apache.log4j.Logger;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.SqlProvider;
 import org.springframework.jdbc.support.DatabaseMetaDataCallback;
 import org.springframework.jdbc.support.JdbcUtils;
 import org.springframework.jdbc.support.MetaDataAccessException;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 
+import fi.thl.pivot.model.ColumnarDataset;
 import fi.thl.pivot.model.Dataset;
 import fi.thl.pivot.model.Dimension;
 import fi.thl.pivot.model.DimensionLevel;
 import fi.thl.pivot.model.DimensionNode;
 import fi.thl.pivot.model.Label;
+import fi.thl.pivot.model.MappedDataset;
+import fi.thl.pivot.model.ModifiablePivot;
+import fi.thl.pivot.model.ModifiablePivot.CellKeyVisitor;
 import fi.thl.pivot.model.Query;
 import fi.thl.pivot.model.Tuple;
 import fi.thl.pivot.util.Constants;
+import fi.thl.pivot.util.LongIntHashMap;
 
 /**
  * An implementatio of a hydra source where data is loaded through a JDBC
@@ -52,6 +69,21 @@ public class JDBCSource extends HydraSource {
 
     private static final String FACT_QUERY_TEMPLATE = "SELECT %s, VAL from %s WHERE %s";
 
+    private static final String FACT_CONDITION_TEMPLATE = "%s_key = ANY(?)";
+
+    private static final String CELL_QUERY_TEMPLATE = "SELECT %s, f.VAL from %s f JOIN (VALUES %s) AS k (%s) ON %s";
+
+    /**
+     * Maximum number of bind parameters in a single PostgreSQL statement
+     */
+    private static final int MAX_PARAMETERS = 32767;
+
+    /**
+     * Cell queries are padded to a power of two keys, at least this many, so
+     * that only a few distinct statements are prepared
+     */
+    private static final int MIN_CELL_BATCH = 16;
+
     private static final int FETCH_SIZE = 2048;
 
     private static final String FIELD_DIMENSION = "dim";
@@ -144,12 +176,17 @@ public class JDBCSource extends HydraSource {
         }
 
         private void listDimensionKeyColumnsInTable(List<String> dimensionColumns, ResultSet rs) throws SQLException {
+            Map<String, String> types = Maps.newHashMap();
             while (rs.next()) {
                 LOG.debug(String.format("Column '%s' detected in fact table", rs.getString("COLUMN_NAME")));
                 if (rs.getString("COLUMN_NAME").toLowerCase().endsWith("_key")) {
                     dimensionColumns.add(rs.getString("COLUMN_NAME").toLowerCase());
+                    types.put(rs.getString("COLUMN_NAME").toLowerCase(), rs.getString("TYPE_NAME"));
                 }
             }
+            keyColumnTypes = types;
+            factQueries.clear();
+            cellQueries.clear();
             LOG.debug("All columns processed");
         }
 
@@ -175,6 +212,127 @@ public class JDBCSource extends HydraSource {
         }
     }
 
+    /**
+     * Streams fact rows into a {@link ColumnarDataset}. Dimension keys are
+     * mapped to surrogate ids as they are read and appended to the dataset in
+     * batches of {@link #FETCH_SIZE} rows so that no node arrays or boxed keys
+     * are created for each row. Integer key columns are read as longs when
+     * all node ids of the cube are numeric. Rows that refer to unknown nodes
+     * are skipped.
+     */
+    private final class FactRowCallbackHandler implements RowCallbackHandler {
+        private final ColumnarDataset dataset = new ColumnarDataset();
+        private final int columnCount = getColumns().size();
+        private final int[] ids = new int[FETCH_SIZE * columnCount];
+        private final String[] values = new String[FETCH_SIZE];
+        private boolean[] numericColumns;
+        private int rows;
+        private int skipped;
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            if (null == numericColumns) {
+                numericColumns = listNumericKeyColumns(rs.getMetaData());
+            }
+            int offset = rows * columnCount;
+            for (int i = 0; i < columnCount; ++i) {
+                int id = readSurrogateId(rs, i);
+                if (id < 0) {
+                    ++skipped;
+                    return;
+                }
+                ids[offset + i] = id;
+            }
+            values[rows] = rs.getString(columnCount + 1);
+            if (++rows == FETCH_SIZE) {
+                flush();
+            }
+        }
+
+        private ColumnarDataset finish() {
+            flush();
+            if (skipped > 0) {
+                LOG.warn("Skipped " + skipped + " facts with unknown dimension keys in " + factTable);
+            }
+            return dataset;
+        }
+
+        private void flush() {
+            dataset.append(ids, columnCount, values, rows);
+            rows = 0;
+        }
+
+        private int readSurrogateId(ResultSet rs, int column) throws SQLException {
+            if (numericColumns[column]) {
+                long id = rs.getLong(column + 1);
+                return rs.wasNull() ? LongIntHashMap.NOT_FOUND : getSurrogateId(id);
+            }
+            String id = rs.getString(column + 1);
+            DimensionNode node = null == id ? null : getNode(id);
+            return null == node ? LongIntHashMap.NOT_FOUND : node.getSurrogateId();
+        }
+
+        private boolean[] listNumericKeyColumns(ResultSetMetaData metaData) throws SQLException {
+            boolean[] numeric = new boolean[columnCount];
+            if (hasNumericNodeIds()) {
+                for (int i = 0; i < columnCount; ++i) {
+                    switch (metaData.getColumnType(i + 1)) {
+                    case Types.BIGINT:
+                    case Types.INTEGER:
+                    case Types.SMALLINT:
+                    case Types.TINYINT:
+                        numeric[i] = true;
+                        break;
+                    default:
+                        numeric[i] = false;
+                    }
+                }
+            }
+            return numeric;
+        }
+    }
+
+    /**
+     * Fact query that joins the fact table with the exact keys of the cells
+     * to load. Key columns are cast to the column type as the parameters are
+     * bound as strings.
+     */
+    private static final class CellQuery implements PreparedStatementCreator, SqlProvider {
+        private final String sql;
+        private final List<String[]> keys;
+        private final int size;
+
+        private CellQuery(String sql, List<String[]> keys, int size) {
+            this.sql = sql;
+            this.keys = keys;
+            this.size = size;
+        }
+
+        @Override
+        public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+            PreparedStatement ps = con.prepareStatement(sql);
+            try {
+                int parameter = 1;
+                for (int i = 0; i < size; ++i) {
+                    // Pad with the last key so that the statement is reused
+                    String[] key = keys.get(Math.min(i, keys.size() - 1));
+                    for (String id : key) {
+                        ps.setString(parameter++, id);
+                    }
+                }
+            } catch (SQLException e) {
+                ps.close();
+                throw e;
+            }
+            return ps;
+        }
+
+        @Override
+        public String getSql() {
+            return sql;
+        }
+    }
+
     private static final Logger LOG = Logger.getLogger(JDBCSource.class);
     private final String factTable;
     private final String treeTable;
@@ -186,6 +344,30 @@ public class JDBCSource extends HydraSource {
 
     private String schema;
 
+    /**
+     * Database type names of the key columns in the fact table
+     */
+    private volatile Map<String, String> keyColumnTypes = Collections.emptyMap();
+
+    /**
+     * Fact query statements by the list of restricted dimensions
+     */
+    private final ConcurrentMap<List<String>, String> factQueries = new ConcurrentHashMap<>();
+
+    /**
+     * Cell query statements by the number of keys
+     */
+    private final ConcurrentMap<Integer, String> cellQueries = new ConcurrentHashMap<>();
+
+    private boolean cellPushDown;
+
+    private FactCache factCache;
+
+    /**
+     * All facts of the source mapped from the fact cache
+     */
+    private volatile MappedDataset cachedFacts;
+
     public JDBCSource(String label, String fact, DataSource dataSource, Properties queries, String factTable, String treeTable, String metaTable,
             String environment) {
         Preconditions.checkNotNull(queries, "No queries defined for source");
@@ -216,19 +398,47 @@ public class JDBCSource extends HydraSource {
 
     @Override
     protected Dataset loadDataInner() {
-        final Dataset newDataSet = new Dataset();
-        jdbcTemplate.query(buildFactQuery(), new RowCallbackHandler() {
-            @Override
-            public void processRow(ResultSet rs) throws SQLException {
-                DimensionNode[] keys = new DimensionNode[getColumns().size()];
-                for (int i = 1; i <= getColumns().size(); ++i) {
-                    keys[i - 1] = getNode(rs.getString(i));
-                }
-                newDataSet.put(rs.getString(getColumns().size() + 1), Arrays.asList(keys));
+        MappedDataset facts = getCachedFacts();
+        return null == facts ? loadAllFacts() : facts;
+    }
+
+    private ColumnarDataset loadAllFacts() {
+        FactRowCallbackHandler handler = new FactRowCallbackHandler();
+        jdbcTemplate.query(buildFactQuery(), handler);
+        return handler.finish();
+    }
+
+    /**
+     * Uses facts cached in local files instead of the database
+     */
+    void setFactCache(FactCache factCache) {
+        this.factCache = factCache;
+    }
 
+    /**
+     * Returns all facts of the source from the fact cache or null if the fact
+     * cache is not in use. The facts are written to the cache on first access.
+     */
+    private MappedDataset getCachedFacts() {
+        MappedDataset facts = cachedFacts;
+        if (null == facts && null != factCache) {
+            synchronized (this) {
+                if (null == cachedFacts && null != factCache) {
+                    cachedFacts = factCache.open(this, new Callable<ColumnarDataset>() {
+                        @Override
+                        public ColumnarDataset call() {
+                            return loadAllFacts();
+                        }
+                    });
+                    if (null == cachedFacts) {
+                        // Do not retry a failed cache on every request
+                        factCache = null;
+                    }
+                }
+                facts = cachedFacts;
             }
-        });
-        return newDataSet;
+        }
+        return facts;
     }
 
     @Override
@@ -238,21 +448,98 @@ public class JDBCSource extends HydraSource {
 
     @Override
     public Dataset loadSubset(Query queryNodes, List<DimensionNode> filter, boolean showValueTypes) {
-        final Dataset newDataSet = new Dataset();
-        final String query = buildFactQuery(queryNodes.getNodesPerDimension().values(), filter, showValueTypes);
+        MappedDataset facts = getCachedFacts();
+        if (null != facts) {
+            return selectSubset(facts, determineFilterationRules(queryNodes.getNodesPerDimension().values(), filter, showValueTypes));
+        }
+        final FactQuery query = buildFactQuery(queryNodes.getNodesPerDimension().values(), filter, showValueTypes);
         LOG.debug("Loading subset of facts using :" + query);
         jdbcTemplate.setFetchSize(FETCH_SIZE);
-        jdbcTemplate.query(query, new RowCallbackHandler() {
+        FactRowCallbackHandler handler = new FactRowCallbackHandler();
+        jdbcTemplate.query(query, handler);
+        return handler.finish();
+    }
+
+    /**
+     * Selects the facts that match the conditions of every restricted
+     * dimension from the cached facts
+     */
+    private Dataset selectSubset(MappedDataset facts, Multimap<String, String> conditions) {
+        if (conditions.isEmpty()) {
+            // Same as the fact query without conditions
+            return new ColumnarDataset();
+        }
+        int[] allowed = new int[conditions.size()];
+        int count = 0;
+        for (String id : conditions.values()) {
+            DimensionNode node = getNode(id);
+            if (null != node) {
+                allowed[count++] = node.getSurrogateId();
+            }
+        }
+        return facts.select(Arrays.copyOf(allowed, count), conditions.keySet().size());
+    }
+
+    /**
+     * Enables loading only the facts shown in a pivot instead of the subset of
+     * facts matching the nodes of each dimension
+     */
+    public void setCellPushDown(boolean cellPushDown) {
+        this.cellPushDown = cellPushDown;
+    }
+
+    @Override
+    public boolean isCellPushDownSupported() {
+        return cellPushDown;
+    }
+
+    @Override
+    public Dataset loadCells(ModifiablePivot pivot, boolean showValueTypes) {
+        MappedDataset facts = getCachedFacts();
+        if (null != facts) {
+            // Cells are looked up directly from the mapped facts
+            return facts;
+        }
+        final List<String> columns = getColumns();
+        final Map<String, Integer> columnIndex = Maps.newHashMap();
+        for (int i = 0; i < columns.size(); ++i) {
+            columnIndex.put(columns.get(i), i);
+        }
+
+        final Map<List<String>, String[]> keys = Maps.newLinkedHashMap();
+        pivot.visitCellKeys(new CellKeyVisitor() {
             @Override
-            public void processRow(ResultSet rs) throws SQLException {
-                DimensionNode[] keys = new DimensionNode[getColumns().size()];
-                for (int i = 1; i <= getColumns().size(); ++i) {
-                    keys[i - 1] = getNode(rs.getString(i));
+            public void visit(int[] key, int length) {
+                if (length != columns.size()) {
+                    return;
                 }
-                newDataSet.put(rs.getString(getColumns().size() + 1), Arrays.asList(keys));
+                String[] ids = new String[length];
+                for (int i = 0; i < length; ++i) {
+                    DimensionNode node = getNode(key[i]);
+                    Integer column = null == node ? null : columnIndex.get(node.getDimension().getId() + "_key");
+                    if (null == column || null != ids[column]) {
+                        // Cell cannot match a fact
+                        return;
+                    }
+                    ids[column] = node.getId();
+                }
+                keys.put(Arrays.asList(ids), ids);
+            }
+        }, showValueTypes);
+        LOG.debug("Loading " + keys.size() + " cells from " + factTable);
+
+        FactRowCallbackHandler handler = new FactRowCallbackHandler();
+        if (!keys.isEmpty()) {
+            List<String[]> keyList = Lists.newArrayList(keys.values());
+            int maxBatch = Math.max(1, MAX_PARAMETERS / columns.size());
+            jdbcTemplate.setFetchSize(FETCH_SIZE);
+            for (int from = 0; from < keyList.size(); from += maxBatch) {
+                List<String[]> batch = keyList.subList(from, Math.min(keyList.size(), from + maxBatch));
+                int size = Math.min(maxBatch, Math.max(MIN_CELL_BATCH, Integer.highestOneBit(batch.size() - 1) << 1));
+                jdbcTemplate.query(new CellQuery(buildCellQuery(size), batch, size), handler);
             }
-        });
-        return newDataSet;
+        }
+        return handler.finish();
     }
 
     protected void loadFactDimensionMetadata(final List<String> newDimensionColumns) {
@@ -308,18 +595,68 @@ public class JDBCSource extends HydraSource {
         return String.format(FACT_QUERY_TEMPLATE, Joiner.on(',').join(getColumns()), factTable, ALWAYS_TRUE);
     }
 
-    private String buildFactQuery(Collection<DimensionNode> shown, List<DimensionNode> filter, boolean showValueTypes) {
+    /**
+     * Key column types are only read from the database metadata when the
+     * metadata of the source is loaded so they are stored in snapshots
+     */
+    @Override
+    protected Map<String, String> getSourceMetadata() {
+        return keyColumnTypes;
+    }
+
+    @Override
+    protected void restoreSourceMetadata(Map<String, String> metadata) {
+        keyColumnTypes = metadata;
+        factQueries.clear();
+        cellQueries.clear();
+    }
+
+    FactQuery buildFactQuery(Collection<DimensionNode> shown, List<DimensionNode> filter, boolean showValueTypes) {
         Multimap<String, String> shownDimensionNodes = determineFilterationRules(shown, filter, showValueTypes);
-        if (shownDimensionNodes.isEmpty()) {
-            return String.format(FACT_QUERY_TEMPLATE, Joiner.on(',').join(getColumns()), factTable, ALWAYS_FALSE);
-        } else {
-            return String.format(FACT_QUERY_TEMPLATE, Joiner.on(',').join(getColumns()), factTable,
-                    Joiner.on(" and ").join(constructWhereStatementsParts(shownDimensionNodes)));
+        List<String> dimensions = Ordering.natural().sortedCopy(shownDimensionNodes.keySet());
+        String sql = factQueries.get(dimensions);
+        if (null == sql) {
+            if (dimensions.isEmpty()) {
+                sql = String.format(FACT_QUERY_TEMPLATE, Joiner.on(',').join(getColumns()), factTable, ALWAYS_FALSE);
+            } else {
+                sql = String.format(FACT_QUERY_TEMPLATE, Joiner.on(',').join(getColumns()), factTable,
+                        Joiner.on(" and ").join(constructWhereStatementsParts(dimensions)));
+            }
+            factQueries.putIfAbsent(dimensions, sql);
+        }
+        return new FactQuery(sql, dimensions, shownDimensionNodes, keyColumnTypes);
+    }
+
+    private String buildCellQuery(int size) {
+        String sql = cellQueries.get(size);
+        if (null == sql) {
+            List<String> columns = getColumns();
+            Map<String, String> types = keyColumnTypes;
+            List<String> select = Lists.newArrayList();
+            List<String> casts = Lists.newArrayList();
+            List<String> join = Lists.newArrayList();
+            for (String column : columns) {
+                select.add("f." + column);
+                casts.add(String.format("CAST(? AS %s)", types.containsKey(column) ? types.get(column) : "varchar"));
+                join.add(String.format("f.%s = k.%s", column, column));
+            }
+            String row = "(" + Joiner.on(',').join(casts) + ")";
+            StringBuilder values = new StringBuilder(size * (row.length() + 1));
+            for (int i = 0; i < size; ++i) {
+                if (i > 0) {
+                    values.append(',');
+                }
+                values.append(row);
+            }
+            sql = String.format(CELL_QUERY_TEMPLATE, Joiner.on(',').join(select), factTable, values, Joiner.on(',').join(columns),
+                    Joiner.on(" and ").join(join));
+            cellQueries.putIfAbsent(size, sql);
         }
+        return sql;
     }
 
     private Multimap<String, String> determineFilterationRules(Collection<DimensionNode> shown, List<DimensionNode> filter, boolean showValueTypes) {
-        Multimap<String, String> shownDimensionNodes = ArrayListMultimap.create();
+        Multimap<String, String> shownDimensionNodes = LinkedHashMultimap.create();
         Set<DimensionNode> expandedFilter = Sets.newHashSet();
 
         expandedFilter.addAll(filter);
@@ -345,25 +682,24 @@ public class JDBCSource extends HydraSource {
         return shownFilterNode.getDimension().getId().equals(hiddenFilterNode.getDimension().getId());
     }
 
-    private List<String> constructWhereStatementsParts(Multimap<String, String> conditions) {
-        Joiner j = Joiner.on(",");
+    private List<String> constructWhereStatementsParts(List<String> dimensions) {
         List<String> c = Lists.newArrayList();
-        for (String key : conditions.keySet()) {
-            c.add(String.format("%s_key in (%s)", key, j.join(conditions.get(key))));
+        for (String key : dimensions) {
+            c.add(String.format(FACT_CONDITION_TEMPLATE, key));
         }
         return c;
     }
 
     private void addHiddenDimensionsAsFilter(Collection<DimensionNode> filter, Multimap<String, String> conditions, boolean showValueTypes) {
         for (DimensionNode h : filter) {
-            conditions.put(h.getDimension().getId(), "'" + h.getId() + "'");
+            conditions.put(h.getDimension().getId(), h.getId());
             addValueTypes(conditions, showValueTypes, h);
         }
     }
 
     private void addShownDimensionNodesAsFilter(Collection<DimensionNode> shown, Multimap<String, String> conditions, boolean showValueTypes) {
         for (DimensionNode h : shown) {
-            conditions.put(h.getDimension().getId(), "'" + h.getId() + "'");
+            conditions.put(h.getDimension().getId(), h.getId());
             addValueTypes(conditions, showValueTypes, h);
         }
     }
@@ -379,7 +715,7 @@ public class JDBCSource extends HydraSource {
 
     private void putMeasureIfNotNull(Multimap<String, String> conditions, DimensionNode node) {
         if(null != node) {
-            conditions.put(Constants.MEASURE, "'" + node.getId() + "'");
+            conditions.put(Constants.MEASURE, node.getId());
         }
     }
 
@@ -0,0 +1,122 @@
+package fi.thl.pivot.datasource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import fi.thl.pivot.model.DimensionNode;
+
+/**
+ * Prefix search over the labels of nodes in a single language. Labels and
+ * the words of each label are kept in sorted arrays so that the matches of a
+ * prefix are found with a binary search followed by a scan over adjacent
+ * terms.
+ *
+ * Nodes whose label starts with the query are returned before nodes where
+ * only a later word of the label starts with the query.
+ *
+ */
+final class LabelSearchIndex {
+
+    private static final class Entry {
+        private final String term;
+        private final DimensionNode node;
+
+        Entry(String term, DimensionNode node) {
+            this.term = term;
+            this.node = node;
+        }
+    }
+
+    private static final class Terms {
+        private final String[] terms;
+        private final DimensionNode[] nodes;
+
+        Terms(List<Entry> entries) {
+            // The sort is stable so nodes with equal terms keep their order
+            Collections.sort(entries, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry o1, Entry o2) {
+                    return o1.term.compareTo(o2.term);
+                }
+            });
+            this.terms = new String[entries.size()];
+            this.nodes = new DimensionNode[entries.size()];
+            for (int i = 0; i < terms.length; ++i) {
+                terms[i] = entries.get(i).term;
+                nodes[i] = entries.get(i).node;
+            }
+        }
+
+        void collect(String prefix, String dimension, int limit, Set<DimensionNode> result) {
+            int i = Arrays.binarySearch(terms, prefix);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            // Equal terms may precede the one found by the binary search
+            while (i > 0 && terms[i - 1].equals(prefix)) {
+                --i;
+            }
+            for (; i < terms.length && result.size() < limit && terms[i].startsWith(prefix); ++i) {
+                DimensionNode node = nodes[i];
+                if ((null == dimension || dimension.equals(node.getDimension().getId())) && node.isVisible()) {
+                    result.add(node);
+                }
+            }
+        }
+    }
+
+    private final Terms labels;
+    private final Terms words;
+
+    LabelSearchIndex(Collection<DimensionNode> nodes, String language) {
+        List<Entry> labelEntries = new ArrayList<>(nodes.size());
+        List<Entry> wordEntries = new ArrayList<>(nodes.size());
+        for (DimensionNode node : nodes) {
+            String label = node.getLabel().getValue(language);
+            if (null == label) {
+                continue;
+            }
+            String normalized = normalize(label);
+            labelEntries.add(new Entry(normalized, node));
+            String[] split = normalized.split("[^\\p{L}\\p{N}]+");
+            // The first word is already matched by the label
+            for (int i = 1; i < split.length; ++i) {
+                if (!split[i].isEmpty()) {
+                    wordEntries.add(new Entry(split[i], node));
+                }
+            }
+        }
+        this.labels = new Terms(labelEntries);
+        this.words = new Terms(wordEntries);
+    }
+
+    /**
+     * Returns at most limit nodes the current user may access whose label or
+     * a word of whose label starts with the query
+     *
+     * @param dimension
+     *            identifier of the dimension to search or null to search all
+     *            dimensions
+     */
+    List<DimensionNode> search(String query, String dimension, int limit) {
+        String prefix = normalize(query);
+        if (prefix.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        Set<DimensionNode> result = new LinkedHashSet<>();
+        labels.collect(prefix, dimension, limit, result);
+        words.collect(prefix, dimension, limit, result);
+        return new ArrayList<>(result);
+    }
+
+    private static String normalize(String value) {
+        return value.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -76,18 +76,35 @@ public class LogSource {
 
     public void logDisplayEvent(String cube, String env, final CubeService cs, String view) {
         try {
-            final String id = Hashing.md5().hashBytes((cube + System.currentTimeMillis()).getBytes()).toString();
-            HttpServletRequest req = ((ServletRequestAttributes) (RequestContextHolder.currentRequestAttributes())).getRequest();
-            String c[] = cube.split("\\.");
-            jdbcTemplate.update(String.format(USAGE_TEMPLATE, env), id, c[0], c[1], c[2], c.length > 4 ? c[3] : "latest", req.getLocalAddr(), req.getRemoteAddr(),
-                    req.getSession().getId(), view, cs.isZeroValuesFiltered() ? "t" : "f", cs.isEmptyValuesFiltered() ? "t" : "f");
-
+            String id = logUsage(cube, env, view, cs.isZeroValuesFiltered(), cs.isEmptyValuesFiltered());
             logSelectedValues(env, cs, id);
         } catch (Exception e) {
             LOG.warn("Could not log event " + e.getMessage());
         }
     }
 
+    /**
+     * Logs a display event of a response served from the response cache.
+     * Selected values are only resolved when the cube is created so only the
+     * usage is logged.
+     */
+    public void logDisplayEvent(String cube, String env, String view, boolean zeroValuesFiltered, boolean emptyValuesFiltered) {
+        try {
+            logUsage(cube, env, view, zeroValuesFiltered, emptyValuesFiltered);
+        } catch (Exception e) {
+            LOG.warn("Could not log event " + e.getMessage());
+        }
+    }
+
+    private String logUsage(String cube, String env, String view, boolean zeroValuesFiltered, boolean emptyValuesFiltered) {
+        final String id = Hashing.md5().hashBytes((cube + System.currentTimeMillis()).getBytes()).toString();
+        HttpServletRequest req = ((ServletRequestAttributes) (RequestContextHolder.currentRequestAttributes())).getRequest();
+        String c[] = cube.split("\\.");
+        jdbcTemplate.update(String.format(USAGE_TEMPLATE, env), id, c[0], c[1], c[2], c.length > 4 ? c[3] : "latest", req.getLocalAddr(), req.getRemoteAddr(),
+                req.getSession().getId(), view, zeroValuesFiltered ? "t" : "f", emptyValuesFiltered ? "t" : "f");
+        return id;
+    }
+
     @Transactional
     private void logSelectedValues(String env, final CubeService cs, final String id) {
         jdbcTemplate.batchUpdate(String.format(SELECTION_TEMPLATE, env), new SelectionBatchSetter(id, cs.getColumnNodes(), "c"));
@@ -0,0 +1,133 @@
+package fi.thl.pivot.datasource;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import fi.thl.pivot.model.MetadataCodec;
+
+/**
+ * Stores the loaded metadata of sources on local disk so that it does not have
+ * to be loaded from the database after a restart. Sources are identified by
+ * their run so a snapshot never has to be updated once written.
+ *
+ * Snapshots are read through a memory mapped buffer. A snapshot that cannot be
+ * decoded is removed and replaced when the metadata is next loaded.
+ *
+ * Snapshots contain the passwords of the cube and its nodes and are only
+ * readable by the owner of the process.
+ *
+ */
+final class MetadataSnapshot {
+
+    private static final Logger LOG = Logger.getLogger(MetadataSnapshot.class);
+
+    private static final int MAGIC = 0x54494b4d;
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".meta";
+    private static final Set<PosixFilePermission> OWNER_ONLY = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+
+    private final File directory;
+
+    MetadataSnapshot(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Restores the metadata of the source from its snapshot
+     *
+     * @return true if a snapshot was found and restored
+     */
+    boolean read(HydraSource source) {
+        File file = fileOf(source);
+        if (!file.isFile()) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                LOG.warn("Ignoring metadata snapshot of unknown version " + file);
+                return false;
+            }
+            source.readSnapshot(new MetadataCodec.Reader(buffer));
+            LOG.debug("Restored metadata of " + source.getId() + " from " + file);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Could not read metadata snapshot " + file, e);
+            return false;
+        } catch (RuntimeException e) {
+            // A corrupt snapshot may fail with any runtime exception, e.g. a
+            // buffer underflow or a negative array size
+            LOG.warn("Removing corrupt metadata snapshot " + file, e);
+            if (!file.delete()) {
+                LOG.warn("Could not remove " + file);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the loaded metadata of the source. The snapshot is
+     * written to a temporary file first so that concurrent readers never see
+     * a partial snapshot.
+     */
+    void write(HydraSource source) {
+        File file = fileOf(source);
+        File temporary = null;
+        try {
+            MetadataCodec.Writer writer = new MetadataCodec.Writer();
+            source.writeSnapshot(writer);
+
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create directory " + directory);
+            }
+            temporary = createOwnerOnlyFile(file.getName());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writer.writeTo(out);
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            LOG.debug("Wrote metadata snapshot " + file);
+        } catch (IOException e) {
+            LOG.warn("Could not write metadata snapshot " + file, e);
+            if (null != temporary && !temporary.delete()) {
+                LOG.warn("Could not remove " + temporary);
+            }
+        }
+    }
+
+    /**
+     * Creates a temporary file that only the owner may read, regardless of
+     * the umask of the process
+     */
+    private File createOwnerOnlyFile(String prefix) throws IOException {
+        try {
+            return Files.createTempFile(directory.toPath(), prefix, ".tmp", PosixFilePermissions.asFileAttribute(OWNER_ONLY)).toFile();
+        } catch (UnsupportedOperationException e) {
+            File temporary = File.createTempFile(prefix, ".tmp", directory);
+            if (!(temporary.setReadable(false, false) && temporary.setReadable(true, true))) {
+                temporary.delete();
+                throw new IOException("Could not restrict access to " + temporary);
+            }
+            return temporary;
+        }
+    }
+
+    private File fileOf(HydraSource source) {
+        return new File(directory, source.getId() + SUFFIX);
+    }
+}
@@ -0,0 +1,73 @@
+package fi.thl.pivot.datasource;
+
+import java.util.Collection;
+
+import fi.thl.pivot.model.DimensionNode;
+import fi.thl.pivot.util.LongIntHashMap;
+
+/**
+ * Index of the nodes of a source by surrogate id. Surrogate ids are usually
+ * assigned sequentially so nodes are stored in an array indexed directly by
+ * the surrogate id. If the ids are sparse the array is packed and the
+ * position of each node is looked up from an open addressing hash map
+ * instead.
+ *
+ */
+final class NodeIndex {
+
+    /**
+     * Ids may be this many times the number of nodes before the index is
+     * packed
+     */
+    private static final int MAX_SPARSENESS = 4;
+    private static final int MIN_DENSE_CAPACITY = 1024;
+
+    private final DimensionNode[] nodes;
+
+    /**
+     * Positions of the nodes in the packed array or null if the array is
+     * indexed by the surrogate id
+     */
+    private final LongIntHashMap positions;
+
+    NodeIndex(Collection<DimensionNode> values) {
+        long max = -1;
+        long min = 0;
+        for (DimensionNode node : values) {
+            max = Math.max(max, node.getSurrogateId());
+            min = Math.min(min, node.getSurrogateId());
+        }
+        if (min >= 0 && max < (long) MAX_SPARSENESS * values.size() + MIN_DENSE_CAPACITY) {
+            this.nodes = new DimensionNode[(int) max + 1];
+            this.positions = null;
+            for (DimensionNode node : values) {
+                nodes[node.getSurrogateId()] = node;
+            }
+        } else {
+            this.nodes = values.toArray(new DimensionNode[values.size()]);
+            this.positions = new LongIntHashMap(nodes.length);
+            for (int i = 0; i < nodes.length; ++i) {
+                positions.put(nodes[i].getSurrogateId(), i);
+            }
+        }
+    }
+
+    /**
+     * Returns the node with the given surrogate id or null if no such node
+     * exists
+     */
+    DimensionNode get(int surrogateId) {
+        if (null == positions) {
+            return surrogateId >= 0 && surrogateId < nodes.length ? nodes[surrogateId] : null;
+        }
+        int position = positions.get(surrogateId);
+        return position == LongIntHashMap.NOT_FOUND ? null : nodes[position];
+    }
+
+    /**
+     * Returns true if nodes are stored in an array indexed by surrogate id
+     */
+    boolean isDense() {
+        return null == positions;
+    }
+}
@@ -0,0 +1,190 @@
+package fi.thl.pivot.datasource;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Registry of cube sources and of the latest runs of each cube.
+ * <p>
+ * Sources are weighed by the number of nodes in their metadata so that the
+ * registry is bounded by the memory used by the dimension trees instead of the
+ * number of cubes. Sources are registered before their metadata is loaded and
+ * must be reweighed with {@link #metadataLoaded(HydraSource)} once the load
+ * completes.
+ * </p>
+ * <p>
+ * The latest run of a cube is resolved at most once within the refresh
+ * interval. Resolutions are refreshed in the background and when a new run is
+ * published for a cube whose current run has its metadata loaded, the source
+ * of the new run is loaded before the new run is made visible. This way users
+ * of popular cubes keep using the previous run until the new one is ready.
+ * </p>
+ */
+class SourceRegistry {
+
+    /**
+     * Loads the information the registry caches
+     */
+    interface Loader {
+
+        /**
+         * Returns the id of the latest run of the fact or "0" if the fact has
+         * no runs in the environment
+         */
+        String loadLatestRun(String environment, String subject, String hydra, String fact);
+
+        /**
+         * Returns the source of the run or null if no such source exists
+         */
+        HydraSource loadSource(String environment, String subject, String hydra, String fact, String runId);
+    }
+
+    private static final Logger LOG = Logger.getLogger(SourceRegistry.class);
+    private static final String SEPARATOR = ".";
+
+    private final Loader loader;
+    private final Cache<String, HydraSource> sources;
+    private final LoadingCache<String, String> latestRuns;
+
+    /**
+     * @param executor
+     *            executor of background refreshes, owned by the caller
+     */
+    SourceRegistry(Loader loader, long maximumNodes, long refreshSeconds, Executor executor) {
+        this(loader, maximumNodes, TimeUnit.SECONDS.toNanos(refreshSeconds), Ticker.systemTicker(), executor);
+    }
+
+    SourceRegistry(Loader loader, long maximumNodes, long refreshNanos, Ticker ticker, Executor executor) {
+        this.loader = loader;
+        this.sources = CacheBuilder.newBuilder().maximumWeight(maximumNodes).weigher(new Weigher<String, HydraSource>() {
+            @Override
+            public int weigh(String key, HydraSource value) {
+                return Math.max(1, value.getNodeCount());
+            }
+        }).build();
+        // Resolutions of cubes that are not used expire so that the first
+        // request after a long pause does not get a stale run
+        this.latestRuns = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .refreshAfterWrite(refreshNanos, TimeUnit.NANOSECONDS)
+                .expireAfterWrite(refreshNanos * 10, TimeUnit.NANOSECONDS)
+                .build(CacheLoader.asyncReloading(new LatestRunLoader(), executor));
+    }
+
+    /**
+     * Returns the id of the latest run of the fact
+     */
+    String getLatestRun(String environment, String subject, String hydra, String fact) {
+        try {
+            return latestRuns.get(latestKey(environment, subject, hydra, fact));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the source of the run or null if no such source exists.
+     * Concurrent requests for the same source receive the same instance.
+     */
+    HydraSource getSource(final String environment, final String subject, final String hydra, final String fact,
+            final String runId) {
+        try {
+            return sources.get(sourceKey(latestKey(environment, subject, hydra, fact), runId), new Callable<HydraSource>() {
+                @Override
+                public HydraSource call() {
+                    return loader.loadSource(environment, subject, hydra, fact, runId);
+                }
+            });
+        } catch (InvalidCacheLoadException e) {
+            // Loader returned null, missing sources are not cached
+            return null;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Reweighs the source after its metadata has been loaded
+     */
+    void metadataLoaded(HydraSource source) {
+        List<String> keys = Lists.newArrayList();
+        for (Map.Entry<String, HydraSource> entry : sources.asMap().entrySet()) {
+            if (entry.getValue() == source) {
+                keys.add(entry.getKey());
+            }
+        }
+        for (String key : keys) {
+            sources.asMap().replace(key, source, source);
+        }
+    }
+
+    private static String latestKey(String environment, String subject, String hydra, String fact) {
+        return environment + "/" + subject + SEPARATOR + hydra + SEPARATOR + fact;
+    }
+
+    private static String sourceKey(String latestKey, String runId) {
+        return latestKey + SEPARATOR + runId;
+    }
+
+    private final class LatestRunLoader extends CacheLoader<String, String> {
+
+        @Override
+        public String load(String key) {
+            int environmentEnd = key.indexOf('/');
+            String[] params = key.substring(environmentEnd + 1).split("\\" + SEPARATOR);
+            return loader.loadLatestRun(key.substring(0, environmentEnd), params[0], params[1], params[2]);
+        }
+
+        @Override
+        public ListenableFuture<String> reload(String key, String oldRunId) {
+            // Called on the refresh executor
+            String runId = load(key);
+            if (!runId.equals(oldRunId)) {
+                prefetch(key, oldRunId, runId);
+            }
+            return Futures.immediateFuture(runId);
+        }
+
+        /**
+         * Loads the metadata of the new run if the previous run is in use
+         */
+        private void prefetch(String key, String oldRunId, String runId) {
+            HydraSource previous = sources.getIfPresent(sourceKey(key, oldRunId));
+            if (null == previous || !previous.isMetadataLoaded()) {
+                return;
+            }
+            LOG.info("Prefetching run " + runId + " of " + key + " to replace run " + oldRunId);
+            int environmentEnd = key.indexOf('/');
+            String[] params = key.substring(environmentEnd + 1).split("\\" + SEPARATOR);
+            try {
+                HydraSource source = getSource(key.substring(0, environmentEnd), params[0], params[1], params[2], runId);
+                if (null != source && !source.isMetadataLoaded()) {
+                    source.loadMetadata();
+                    metadataLoaded(source);
+                }
+            } catch (RuntimeException e) {
+                // The run is still made visible and loaded on demand
+                LOG.warn("Could not prefetch run " + runId + " of " + key, e);
+            }
+        }
+    }
+}
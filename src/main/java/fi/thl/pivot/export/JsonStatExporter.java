@@ -1,17 +1,18 @@
 package fi.thl.pivot.export;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.springframework.ui.Model;
 
-import com.google.common.base.Joiner;
+import com.google.common.base.Charsets;
 
 import fi.thl.pivot.model.DimensionNode;
 import fi.thl.pivot.model.Label;
@@ -20,25 +21,62 @@ import fi.thl.pivot.model.PivotCell;
 import fi.thl.pivot.model.PivotLevel;
 import fi.thl.pivot.util.ThreadRole;
 
+/**
+ * Writes a pivot as a JSON-stat 2.0 dataset. Values are written as an array
+ * when most cells have a value and as an object keyed by cell position
+ * otherwise. Values that are not numbers are written as null and their
+ * markers in status.
+ */
 public class JsonStatExporter {
 
     private static final Logger LOG = Logger.getLogger(JsonStatExporter.class);
 
+    /**
+     * Values are written as an array when at least this share of the cells
+     * has a value
+     */
+    private static final double DENSE_FILL_RATIO = 0.5;
+
+    private static final String VALUE_TYPE_ID = "tiku_vtype";
+
+    /**
+     * Values of the cells in the order they are written
+     */
+    private static final class Values {
+        private int[] positions = new int[1024];
+        private String[] values = new String[1024];
+        private int size;
+        private int maxPosition = -1;
+
+        void add(long position, String value) {
+            if (null == value) {
+                return;
+            }
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            positions[size] = (int) position;
+            maxPosition = Math.max(maxPosition, (int) position);
+            values[size++] = value;
+        }
+    }
+
     public void export(Model model, OutputStream out) throws IOException {
-        PrintWriter writer = null;
+        JsonWriter writer = null;
         Map<String, Object> params = model.asMap();
         try {
-            writer = new PrintWriter(new BufferedOutputStream(out));
+            writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8)));
             if (isSet(params, "jsonp")) {
-                writer.println("thl.pivot.fromJsonStat(");
+                writer.write("thl.pivot.fromJsonStat(\n");
             }
 
-            writer.println("{");
+            writer.write('{');
             exportMetadata(writer, params);
-            writer.println("}");
+            writer.write("}\n");
 
             if (isSet(params, "jsonp")) {
-                writer.println(");");
+                writer.write(");\n");
             }
             writer.flush();
         } finally {
@@ -51,175 +89,216 @@ public class JsonStatExporter {
         return Boolean.TRUE.equals(model.get(attribute));
     }
 
-    private void exportMetadata(PrintWriter writer, Map<String, Object> model) {
+    private void exportMetadata(JsonWriter writer, Map<String, Object> model) throws IOException {
         Pivot pivot = (Pivot) model.get("pivot");
         Label label = (Label) model.get("cubeLabel");
 
         List<String> identifiers = new ArrayList<>();
         List<Integer> sizes = new ArrayList<>();
         for (PivotLevel level : pivot.getRows()) {
-            String id = findUniqueId(identifiers, level);
-            identifiers.add(quote(escape(id)));
+            identifiers.add(findUniqueId(identifiers, level));
             sizes.add(level.size());
         }
         for (PivotLevel level : pivot.getColumns()) {
-            String id = findUniqueId(identifiers, level);
-            identifiers.add(quote(escape(id)));
+            identifiers.add(findUniqueId(identifiers, level));
             sizes.add(level.size());
         }
         boolean showValueTypes = isSet(model, "showCi") || isSet(model, "showSampleSize");
         if (showValueTypes) {
-            identifiers.add("\"tiku_vtype\"");
+            identifiers.add(VALUE_TYPE_ID);
             sizes.add(4);
         }
 
-        writer.println("\t\"dataset\": {");
-        writer.println("\t\t\"version\": \"2.0\",");
-        writer.println("\t\t\"class\": \"dataset\",");
-        writer.println(String.format("\t\t\"label\": \"%s\",", escape(label.getValue(ThreadRole.getLanguage()))));
-
-        writer.println("\t\t\"dimension\": {");
+        writer.write("\"dataset\":{\"version\":\"2.0\",\"class\":\"dataset\",\"label\":");
+        writer.writeString(label.getValue(ThreadRole.getLanguage()));
 
+        writer.write(",\"dimension\":{");
         exportDimensionIdentifiers(writer, identifiers);
         exportDimensionSizes(writer, sizes);
+        boolean surrogate = isSet(model, "surrogate");
         int i = 0;
-        i = exportLevels(writer, model, identifiers, i, pivot.getRows());
-        i = exportLevels(writer, model, identifiers, i, pivot.getColumns());
+        i = exportLevels(writer, surrogate, identifiers, i, pivot.getRows());
+        i = exportLevels(writer, surrogate, identifiers, i, pivot.getColumns());
         if (showValueTypes) {
-            writer.println(",\"tiku_vtype\": { \"category\": { \"index\": { \"v\": 0, \"ci_lower\": 1, \"ci_upper\": 2, \"n\": 3 } } }");
+            writer.write(",\"" + VALUE_TYPE_ID + "\":{\"category\":{\"index\":{\"v\":0,\"ci_lower\":1,\"ci_upper\":2,\"n\":3}}}");
         }
-        writer.print("\n\t\t}");
+        writer.write('}');
 
-        exportValues(writer, pivot, showValueTypes);
+        exportValues(writer, pivot, showValueTypes, cellCount(sizes));
 
-        writer.println("\t}");
+        writer.write('}');
     }
 
     private String findUniqueId(List<String> identifiers, PivotLevel level) {
         String id = level.getDimension().getId();
-        if (identifiers.contains(quote(escape(id)))) {
+        if (identifiers.contains(id)) {
             String originalId = id;
             int i = 1;
-            while (identifiers.contains(quote(escape(id)))) {
-                id = originalId + i;
+            while (identifiers.contains(id)) {
+                id = originalId + i++;
             }
         }
         return id;
     }
 
-    private void exportValues(PrintWriter writer, Pivot pivot, boolean showValueTypes) {
-        int count = 0;
+    private static long cellCount(List<Integer> sizes) {
+        long count = 1;
+        for (int size : sizes) {
+            count *= size;
+            if (count > Integer.MAX_VALUE) {
+                return Long.MAX_VALUE;
+            }
+        }
+        return count;
+    }
+
+    private void exportValues(JsonWriter writer, Pivot pivot, boolean showValueTypes, long cellCount) throws IOException {
+        Values values = new Values();
         for (PivotCell cell : pivot) {
-            int index = cell.getPosition();
+            String value = cell.getValue();
+            if (value == null) {
+                continue;
+            }
             if (showValueTypes) {
-                index *= 4;
+                long index = cell.getPosition() * 4L;
+                values.add(index, value);
+                values.add(index + 1, cell.getConfidenceLowerLimit());
+                values.add(index + 2, cell.getConfidenceUpperLimit());
+                values.add(index + 3, cell.getSampleSize());
+            } else {
+                values.add(cell.getPosition(), value);
             }
-            String value = cell.getValue();
-            if (value != null) {
-                if (count > 0) {
-                    writer.write(",\n\t\t\t");
-                } else {
-                    writer.println(",\n\t\t\"value\": {");
-                    writer.print("\t\t\t");
-                }
-                printValue(writer, index, value);
-                if (showValueTypes) {
-                    writer.print(",");
-                    printValue(writer, index + 1, cell.getConfidenceLowerLimit());
+        }
 
-                    writer.print(",");
-                    printValue(writer, index + 2, cell.getConfidenceUpperLimit());
+        writer.write(",\"value\":");
+        if (values.size == 0) {
+            writer.write("[]");
+        } else if (values.maxPosition < cellCount && values.size >= cellCount * DENSE_FILL_RATIO) {
+            exportDenseValues(writer, values, (int) cellCount);
+        } else {
+            exportSparseValues(writer, values);
+        }
+        exportStatus(writer, values);
+    }
 
-                    writer.print(",");
-                    printValue(writer, index + 3, cell.getSampleSize());
-                }
-                ++count;
+    /**
+     * Values that are not numbers are written as null in the value array and
+     * the original marker is written in status keyed by cell position
+     */
+    private void exportStatus(JsonWriter writer, Values values) throws IOException {
+        boolean first = true;
+        for (int i = 0; i < values.size; ++i) {
+            if (JsonWriter.isNumber(values.values[i])) {
+                continue;
             }
+            writer.write(first ? ",\"status\":{\"" : ",\"");
+            first = false;
+            writer.writeNumber(values.positions[i]);
+            writer.write("\":");
+            writer.writeString(values.values[i]);
         }
-        if (count > 0) {
-            writer.println("\n\t\t}");
-        } else {
-            writer.println(",\n\t\t\"value\": []");
+        if (!first) {
+            writer.write('}');
         }
     }
 
-    private void printValue(PrintWriter writer, int i, String value) {
-        writer.write(String.format("\"%d\": %s", i, value.replace(",", ".")));
+    private void exportDenseValues(JsonWriter writer, Values values, int cellCount) throws IOException {
+        String[] dense = new String[cellCount];
+        for (int i = 0; i < values.size; ++i) {
+            dense[values.positions[i]] = values.values[i];
+        }
+        writer.write('[');
+        for (int i = 0; i < dense.length; ++i) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.writeValue(dense[i]);
+        }
+        writer.write(']');
     }
 
-    private int exportLevels(PrintWriter writer, Map<String, Object> model, List<String> identifiers, int index, List<PivotLevel> levels) {
+    private void exportSparseValues(JsonWriter writer, Values values) throws IOException {
+        writer.write('{');
+        for (int i = 0; i < values.size; ++i) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write('"');
+            writer.writeNumber(values.positions[i]);
+            writer.write("\":");
+            writer.writeValue(values.values[i]);
+        }
+        writer.write('}');
+    }
+
+    private int exportLevels(JsonWriter writer, boolean surrogate, List<String> identifiers, int index, List<PivotLevel> levels) throws IOException {
+        String language = ThreadRole.getLanguage();
         for (PivotLevel level : levels) {
+            String id = identifiers.get(index++);
             if (level.size() == 0) {
                 continue;
             }
-            writer.println(String.format(",\n\t\t\t%s : {", identifiers.get(index++)));
-            writer.println("\t\t\t\t\"category\": {");
-            writer.print("\t\t\t\t\t\"index\": {");
-            List<String> nodes = new ArrayList<>();
+            writer.write(',');
+            writer.writeString(id);
+            writer.write(":{\"category\":{\"index\":{");
             int i = 0;
-            if (isSet(model, "surrogate")) {
-                for (DimensionNode node : level.getNodes()) {
-                    nodes.add(String.format("\n\t\t\t\t\t\t\"%s\": %d", node.getSurrogateId(), i++));
-                }
-            } else {
-                for (DimensionNode node : level.getNodes()) {
-                    nodes.add(String.format("\n\t\t\t\t\t\t\"%s\": %d", escape(node.getId()), i++));
+            for (DimensionNode node : level.getNodes()) {
+                if (i > 0) {
+                    writer.write(',');
                 }
+                exportNodeKey(writer, surrogate, node);
+                writer.write(':');
+                writer.writeNumber(i++);
             }
-            writer.print("\t\t\t\t\t");
-            writer.println(Joiner.on(",").join(nodes));
-            writer.println("\t\t\t\t\t},");
 
-            writer.print("\t\t\t\t\t\"label\": {");
-            nodes = new ArrayList<>();
+            writer.write("},\"label\":{");
             i = 0;
-            if (isSet(model, "surrogate")) {
-                for (DimensionNode node : level.getNodes()) {
-                    nodes.add(String.format("\n\t\t\t\t\t\t\"%s\": \"%s\"", node.getSurrogateId(), escape(node.getLabel().getValue(ThreadRole.getLanguage()))));
-
-                }
-            } else {
-                for (DimensionNode node : level.getNodes()) {
-                    nodes.add(String.format("\n\t\t\t\t\t\t\"%s\": \"%s\"", escape(node.getId()), escape(node.getLabel().getValue(ThreadRole.getLanguage()))));
+            for (DimensionNode node : level.getNodes()) {
+                if (i++ > 0) {
+                    writer.write(',');
                 }
+                exportNodeKey(writer, surrogate, node);
+                writer.write(':');
+                writer.writeString(node.getLabel().getValue(language));
             }
-
-            writer.print("\t\t\t\t\t");
-            writer.println(Joiner.on(",").join(nodes));
-            writer.println("\t\t\t\t\t}");
-
-            writer.print("\t\t\t\t}\n\t\t\t}");
+            writer.write("}}}");
         }
         return index;
     }
 
-    private void exportDimensionSizes(PrintWriter writer, List<Integer> sizes) {
-        writer.println(",");
-        writer.println("\t\t\t\"size\": [");
-        writer.print("\t\t\t\t");
-        writer.println(Joiner.on(",").join(sizes));
-        writer.print("\t\t\t]");
-    }
-
-    private void exportDimensionIdentifiers(PrintWriter writer, List<String> identifiers) {
-        writer.println("\t\t\t\"id\": [");
-        writer.print("\t\t\t\t");
-        writer.println(Joiner.on(",").join(identifiers));
-        writer.print("\t\t\t]");
+    private void exportNodeKey(JsonWriter writer, boolean surrogate, DimensionNode node) throws IOException {
+        if (surrogate) {
+            writer.write('"');
+            writer.writeNumber(node.getSurrogateId());
+            writer.write('"');
+        } else {
+            writer.writeString(node.getId());
+        }
     }
 
-    private String quote(String value) {
-        return String.format("\"%s\"", value);
+    private void exportDimensionSizes(JsonWriter writer, List<Integer> sizes) throws IOException {
+        writer.write(",\"size\":[");
+        for (int i = 0; i < sizes.size(); ++i) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.writeNumber(sizes.get(i));
+        }
+        writer.write(']');
     }
 
-    private String escape(String value) {
-        if (null == value) {
-            return "";
+    private void exportDimensionIdentifiers(JsonWriter writer, List<String> identifiers) throws IOException {
+        writer.write("\"id\":[");
+        for (int i = 0; i < identifiers.size(); ++i) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.writeString(identifiers.get(i));
         }
-        return value.replaceAll("\"", "\\\"");
+        writer.write(']');
     }
 
-    private void close(PrintWriter writer) {
+    private void close(JsonWriter writer) {
         try {
             if (null != writer) {
                 writer.close();
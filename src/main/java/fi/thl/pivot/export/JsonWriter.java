@@ -0,0 +1,205 @@
+package fi.thl.pivot.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Minimal streaming JSON writer. Output is collected in a reusable character
+ * buffer so that numbers and escaped strings are written without creating
+ * intermediate strings. Structure is written by the caller with
+ * {@link #write(char)} and {@link #write(String)}.
+ *
+ */
+final class JsonWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Escape sequences of ASCII characters that must be escaped in a JSON
+     * string, null if the character is written as is
+     */
+    private static final String[] ESCAPES = new String[128];
+
+    static {
+        for (int c = 0; c < 0x20; ++c) {
+            ESCAPES[c] = String.format("\\u%04x", c);
+        }
+        ESCAPES['"'] = "\\\"";
+        ESCAPES['\\'] = "\\\\";
+        ESCAPES['\b'] = "\\b";
+        ESCAPES['\f'] = "\\f";
+        ESCAPES['\n'] = "\\n";
+        ESCAPES['\r'] = "\\r";
+        ESCAPES['\t'] = "\\t";
+    }
+
+    private final Writer out;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+
+    JsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes a character as is
+     */
+    void write(char c) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = c;
+    }
+
+    /**
+     * Writes a string as is
+     */
+    void write(String value) throws IOException {
+        int length = value.length();
+        if (length > buffer.length - position) {
+            flushBuffer();
+            if (length > buffer.length) {
+                out.write(value);
+                return;
+            }
+        }
+        value.getChars(0, length, buffer, position);
+        position += length;
+    }
+
+    /**
+     * Writes a quoted and escaped JSON string. Null is written as an empty
+     * string.
+     */
+    void writeString(String value) throws IOException {
+        write('"');
+        if (null != value) {
+            for (int i = 0, n = value.length(); i < n; ++i) {
+                char c = value.charAt(i);
+                if (c < ESCAPES.length) {
+                    if (null == ESCAPES[c]) {
+                        write(c);
+                    } else {
+                        write(ESCAPES[c]);
+                    }
+                } else if (c == '\u2028' || c == '\u2029') {
+                    // Valid in JSON but not in JavaScript so escaped for JSONP
+                    write(c == '\u2028' ? "\\u2028" : "\\u2029");
+                } else {
+                    write(c);
+                }
+            }
+        }
+        write('"');
+    }
+
+    /**
+     * Writes an integer in decimal without creating a string
+     */
+    void writeNumber(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            write(Long.toString(value));
+            return;
+        }
+        if (buffer.length - position < 20) {
+            flushBuffer();
+        }
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            ++digits;
+        }
+        int end = position + digits;
+        for (int i = end - 1; i >= position; --i) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        position = end;
+    }
+
+    /**
+     * Writes a numeric value as is except that a decimal comma is written as
+     * a decimal point. Null and values that are not numbers, e.g. the ".."
+     * marker of a suppressed value, are written as JSON null.
+     */
+    void writeValue(String value) throws IOException {
+        if (!isNumber(value)) {
+            write("null");
+            return;
+        }
+        for (int i = 0, n = value.length(); i < n; ++i) {
+            char c = value.charAt(i);
+            write(c == ',' ? '.' : c);
+        }
+    }
+
+    /**
+     * Determines if the value is a JSON number when a decimal comma is read
+     * as a decimal point
+     */
+    static boolean isNumber(String value) {
+        if (null == value) {
+            return false;
+        }
+        int n = value.length();
+        int i = 0;
+        if (i < n && value.charAt(i) == '-') {
+            ++i;
+        }
+        if (i < n && value.charAt(i) == '0') {
+            ++i;
+        } else if (i < n && value.charAt(i) >= '1' && value.charAt(i) <= '9') {
+            i = skipDigits(value, i);
+        } else {
+            return false;
+        }
+        if (i < n && (value.charAt(i) == '.' || value.charAt(i) == ',')) {
+            int start = ++i;
+            i = skipDigits(value, i);
+            if (i == start) {
+                return false;
+            }
+        }
+        if (i < n && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            ++i;
+            if (i < n && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+                ++i;
+            }
+            int start = i;
+            i = skipDigits(value, i);
+            if (i == start) {
+                return false;
+            }
+        }
+        return i == n;
+    }
+
+    private static int skipDigits(String value, int i) {
+        while (i < value.length() && value.charAt(i) >= '0' && value.charAt(i) <= '9') {
+            ++i;
+        }
+        return i;
+    }
+
+    void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        out.close();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
@@ -65,10 +65,5 @@ public class AbstractPivotForwarder implements Pivot {
     public int getColumnNumber(int column) {
         return delegate.getColumnNumber(column);
     }
-    
-    @Override
-    public void filterCellAt(int row, int column) {
-        delegate.filterCellAt(row, column);
-    }
 
 }
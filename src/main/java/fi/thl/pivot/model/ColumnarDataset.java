@@ -0,0 +1,499 @@
+package fi.thl.pivot.model;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Charsets;
+
+import fi.thl.pivot.util.IndexSort;
+import fi.thl.pivot.util.IndexSort.IndexComparator;
+
+/**
+ * Column oriented {@link Dataset} that stores the sorted surrogate id tuple of
+ * each fact in packed int columns instead of a chain of tree maps.
+ *
+ * Numeric values are stored as doubles together with the number of fraction
+ * digits and the decimal separator of the original string, so that e.g. "12.0",
+ * "0,10" and "12345678.5" are reproduced exactly. All other values (e.g. '..'
+ * markers for missing or suppressed values) are stored once in a side table and
+ * referred to by index.
+ *
+ * Rows are appended as they are put and sorted lazily before the first lookup
+ * so loading a large fact table does not pay for an ordered insert for each
+ * row. If the same key is put more than once, the last value wins as in
+ * {@link Dataset}.
+ *
+ * All rows must have the same number of keys. The arity is fixed by the first
+ * row that is put to the dataset. Rows with a different arity are ignored and
+ * lookups with a different arity return null.
+ *
+ * The dataset is not thread safe while it is populated but may be shared
+ * between threads once populated.
+ *
+ */
+public class ColumnarDataset extends Dataset {
+
+    private static final Logger LOG = Logger.getLogger(ColumnarDataset.class);
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * The kind of a numeric value is the number of fraction digits it is
+     * written with, flagged with DECIMAL_COMMA if it uses a decimal comma
+     */
+    static final byte FRACTION_DIGITS = 0x1f;
+    static final byte DECIMAL_COMMA = 0x20;
+    static final byte MARKER = -1;
+
+    private static final int MAX_FRACTION_DIGITS = 15;
+
+    /**
+     * Values whose digits, read as an integer, exceed this magnitude are not
+     * exactly representable as doubles and are stored as markers
+     */
+    private static final double MAX_EXACT = 1e15;
+
+    private static final double[] POWERS_OF_TEN = new double[MAX_FRACTION_DIGITS + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; ++i) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private int arity = -1;
+    private int size;
+    private int[][] keys;
+    private double[] numbers;
+    private byte[] kinds;
+
+    private final List<String> markers = new ArrayList<>();
+    private final Map<String, Integer> markerIndex = new HashMap<>();
+    private final BitSet numericMarkers = new BitSet();
+    private double[] markerNumbers = new double[16];
+
+    private volatile boolean sorted = true;
+
+    @Override
+    public void put(String value, List<DimensionNode> keys) {
+        if (null == keys || keys.isEmpty()) {
+            LOG.trace("Cannot add value to dataset: No keys set for value");
+            return;
+        }
+        if (null == value) {
+            LOG.trace("Cannot add value to dataset: Null value detected");
+            return;
+        }
+        int[] ids = new int[keys.size()];
+        int i = 0;
+        for (DimensionNode node : keys) {
+            ids[i++] = node.getSurrogateId();
+        }
+        Arrays.sort(ids);
+        append(ids, ids.length, value);
+    }
+
+    @Override
+    public String get(Collection<DimensionNode> keys) {
+        if (keys.size() != arity) {
+            return null;
+        }
+        int[] ids = new int[keys.size()];
+        int i = 0;
+        for (DimensionNode node : keys) {
+            ids[i++] = node.getSurrogateId();
+        }
+        Arrays.sort(ids);
+        return find(ids);
+    }
+
+    @Override
+    public String getWithIds(Collection<Integer> keys) {
+        if (keys.size() != arity) {
+            return null;
+        }
+        int[] ids = new int[keys.size()];
+        int i = 0;
+        for (Iterator<Integer> it = keys.iterator(); it.hasNext();) {
+            ids[i++] = it.next();
+        }
+        Arrays.sort(ids);
+        return find(ids);
+    }
+
+    @Override
+    public int indexOf(int[] key, int length) {
+        if (length != arity) {
+            return -1;
+        }
+        Arrays.sort(key, 0, length);
+        ensureSorted();
+        return search(key);
+    }
+
+    @Override
+    public String valueAt(int index) {
+        return decode(index);
+    }
+
+    @Override
+    public boolean isNumberAt(int index) {
+        return kinds[index] != MARKER || numericMarkers.get((int) numbers[index]);
+    }
+
+    @Override
+    public double numberAt(int index) {
+        if (kinds[index] != MARKER) {
+            return numbers[index];
+        }
+        int marker = (int) numbers[index];
+        if (!numericMarkers.get(marker)) {
+            throw new NumberFormatException("Not a number: " + markers.get(marker));
+        }
+        return markerNumbers[marker];
+    }
+
+    @Override
+    public long estimateSize() {
+        long bytes = 0;
+        if (null != kinds) {
+            // key columns, numbers and kinds
+            bytes += (long) kinds.length * (arity * 4 + 9);
+        }
+        for (String marker : markers) {
+            bytes += 64 + 2 * marker.length();
+        }
+        return bytes + markerNumbers.length * 8L;
+    }
+
+    /**
+     * Returns the number of distinct keys in the dataset
+     */
+    public int size() {
+        ensureSorted();
+        return size;
+    }
+
+    /**
+     * Writes the rows in the layout read by {@link MappedDataset}: the arity,
+     * the number of rows and the markers followed by each key column, the
+     * numbers and the kinds of the values.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        ensureSorted();
+        out.writeInt(MappedDataset.MAGIC);
+        out.writeInt(Math.max(0, arity));
+        out.writeInt(size);
+        out.writeInt(markers.size());
+        for (String marker : markers) {
+            byte[] encoded = marker.getBytes(Charsets.UTF_8);
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+        for (int c = 0; c < arity; ++c) {
+            for (int r = 0; r < size; ++r) {
+                out.writeInt(keys[c][r]);
+            }
+        }
+        for (int r = 0; r < size; ++r) {
+            out.writeDouble(numbers[r]);
+        }
+        if (size > 0) {
+            out.write(kinds, 0, size);
+        }
+    }
+
+    /**
+     * Appends a batch of rows to the end of the columns. The surrogate ids of
+     * the rows are given row by row in a single array, length ids per row, in
+     * any order. The ids are sorted in place.
+     * 
+     * @param ids
+     *            surrogate ids of the rows
+     * @param length
+     *            number of ids in each row
+     * @param values
+     *            values of the rows
+     * @param rows
+     *            number of rows used from the beginning of the arrays
+     */
+    public void append(int[] ids, int length, String[] values, int rows) {
+        if (rows == 0) {
+            return;
+        }
+        if (arity < 0) {
+            arity = length;
+            allocate(Math.max(INITIAL_CAPACITY, rows));
+        } else if (length != arity) {
+            LOG.warn("Cannot add values to dataset: Expected " + arity + " keys but got " + length);
+            return;
+        }
+        if (size + rows > kinds.length) {
+            allocate(Math.max(size + rows, size + (size >> 1)));
+        }
+        for (int r = 0, offset = 0; r < rows; ++r, offset += length) {
+            if (null == values[r]) {
+                continue;
+            }
+            Arrays.sort(ids, offset, offset + length);
+            for (int c = 0; c < arity; ++c) {
+                keys[c][size] = ids[offset + c];
+            }
+            encode(size, values[r]);
+            ++size;
+        }
+        sorted = false;
+    }
+
+    /**
+     * Appends a row to the end of the columns. The ids must be sorted in
+     * ascending order.
+     */
+    void append(int[] ids, int length, String value) {
+        if (arity < 0) {
+            arity = length;
+            allocate(INITIAL_CAPACITY);
+        } else if (length != arity) {
+            LOG.warn("Cannot add value to dataset: Expected " + arity + " keys but got " + length);
+            return;
+        }
+        if (size == kinds.length) {
+            allocate(Math.max(INITIAL_CAPACITY, size + (size >> 1)));
+        }
+        for (int c = 0; c < arity; ++c) {
+            keys[c][size] = ids[c];
+        }
+        encode(size, value);
+        ++size;
+        sorted = false;
+    }
+
+    private String find(int[] ids) {
+        ensureSorted();
+        int row = search(ids);
+        return row < 0 ? null : decode(row);
+    }
+
+    private int search(int[] ids) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int c = compare(middle, ids);
+            if (c < 0) {
+                low = middle + 1;
+            } else if (c > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private int compare(int row, int[] ids) {
+        for (int c = 0; c < arity; ++c) {
+            int a = keys[c][row];
+            int b = ids[c];
+            if (a != b) {
+                return a < b ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private void allocate(int capacity) {
+        if (null == keys) {
+            keys = new int[arity][capacity];
+            numbers = new double[capacity];
+            kinds = new byte[capacity];
+        } else {
+            for (int c = 0; c < arity; ++c) {
+                keys[c] = Arrays.copyOf(keys[c], capacity);
+            }
+            numbers = Arrays.copyOf(numbers, capacity);
+            kinds = Arrays.copyOf(kinds, capacity);
+        }
+    }
+
+    private void encode(int row, String value) {
+        byte kind = numericKind(value);
+        if (kind != MARKER) {
+            double d = Double.parseDouble((kind & DECIMAL_COMMA) != 0 ? value.replace(',', '.') : value);
+            if (Math.abs(d) * POWERS_OF_TEN[kind & FRACTION_DIGITS] < MAX_EXACT && value.equals(format(d, kind))) {
+                kinds[row] = kind;
+                numbers[row] = d;
+                return;
+            }
+        }
+        kinds[row] = MARKER;
+        numbers[row] = marker(value);
+    }
+
+    private String decode(int row) {
+        if (kinds[row] == MARKER) {
+            return markers.get((int) numbers[row]);
+        }
+        return format(numbers[row], kinds[row]);
+    }
+
+    private int marker(String value) {
+        Integer index = markerIndex.get(value);
+        if (null == index) {
+            index = markers.size();
+            markers.add(value);
+            markerIndex.put(value, index);
+            // Numbers that cannot be reproduced from a double, e.g. 0.10
+            if (Numbers.isNumber(value)) {
+                if (index >= markerNumbers.length) {
+                    markerNumbers = Arrays.copyOf(markerNumbers, markerNumbers.length * 2);
+                }
+                markerNumbers[index] = Numbers.parse(value);
+                numericMarkers.set(index);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the kind of a string that consists of an optional minus sign,
+     * digits and at most one decimal point or comma followed by digits, or
+     * MARKER for any other string. Guards {@link Double#parseDouble(String)}
+     * from exponents, type suffixes and other notations we never want to
+     * interpret as numbers.
+     */
+    private static byte numericKind(String value) {
+        int length = value.length();
+        int i = length > 0 && value.charAt(0) == '-' ? 1 : 0;
+        int integerDigits = 0;
+        for (; i < length && isDigit(value.charAt(i)); ++i) {
+            ++integerDigits;
+        }
+        if (integerDigits == 0) {
+            return MARKER;
+        }
+        if (i == length) {
+            return 0;
+        }
+        char separator = value.charAt(i++);
+        if (separator != '.' && separator != ',') {
+            return MARKER;
+        }
+        int fractionDigits = length - i;
+        if (fractionDigits == 0 || fractionDigits > MAX_FRACTION_DIGITS) {
+            return MARKER;
+        }
+        for (; i < length; ++i) {
+            if (!isDigit(value.charAt(i))) {
+                return MARKER;
+            }
+        }
+        return (byte) (separator == ',' ? fractionDigits | DECIMAL_COMMA : fractionDigits);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Writes the number with the fraction digits and decimal separator of its
+     * kind
+     */
+    static String format(double number, byte kind) {
+        int digits = kind & FRACTION_DIGITS;
+        long scaled = Math.round(number * POWERS_OF_TEN[digits]);
+        if (digits == 0) {
+            return Long.toString(scaled);
+        }
+        StringBuilder sb = new StringBuilder(24);
+        if (scaled < 0) {
+            sb.append('-');
+            scaled = -scaled;
+        }
+        String unscaled = Long.toString(scaled);
+        for (int zeros = digits + 1 - unscaled.length(); zeros > 0; --zeros) {
+            sb.append('0');
+        }
+        sb.append(unscaled);
+        sb.insert(sb.length() - digits, (kind & DECIMAL_COMMA) != 0 ? ',' : '.');
+        return sb.toString();
+    }
+
+    private void ensureSorted() {
+        if (!sorted) {
+            synchronized (this) {
+                if (!sorted) {
+                    sortRows();
+                    sorted = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorts rows by their key tuple and removes duplicate keys. As the sort is
+     * stable the last row of each run of equal keys is the one put last.
+     */
+    private void sortRows() {
+        int[] order = IndexSort.identity(size);
+        IndexSort.sort(order, new IndexComparator() {
+            @Override
+            public int compare(int a, int b) {
+                for (int c = 0; c < arity; ++c) {
+                    int x = keys[c][a];
+                    int y = keys[c][b];
+                    if (x != y) {
+                        return x < y ? -1 : 1;
+                    }
+                }
+                return 0;
+            }
+        });
+
+        int distinct = 0;
+        for (int i = 0; i < size; ++i) {
+            if (i + 1 < size && sameKey(order[i], order[i + 1])) {
+                continue;
+            }
+            order[distinct++] = order[i];
+        }
+
+        for (int c = 0; c < arity; ++c) {
+            int[] column = new int[distinct];
+            for (int i = 0; i < distinct; ++i) {
+                column[i] = keys[c][order[i]];
+            }
+            keys[c] = column;
+        }
+        double[] sortedNumbers = new double[distinct];
+        byte[] sortedKinds = new byte[distinct];
+        for (int i = 0; i < distinct; ++i) {
+            sortedNumbers[i] = numbers[order[i]];
+            sortedKinds[i] = kinds[order[i]];
+        }
+        numbers = sortedNumbers;
+        kinds = sortedKinds;
+        size = distinct;
+    }
+
+    private boolean sameKey(int a, int b) {
+        for (int c = 0; c < arity; ++c) {
+            if (keys[c][a] != keys[c][b]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
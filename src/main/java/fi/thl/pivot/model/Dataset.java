@@ -1,6 +1,8 @@
 package fi.thl.pivot.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -35,8 +37,26 @@ public class Dataset {
 
     private static final Logger LOG = Logger.getLogger(Dataset.class);
 
+    /**
+     * Rough heap usage of a single value including the value string, the tree
+     * map entries of its key and the boxed ids
+     */
+    private static final int ESTIMATED_ENTRY_SIZE = 160;
+
     private Map<Integer, Object> values = new TreeMap<>();
 
+    /**
+     * Values of the dataset. Leaves of the key tree refer to this list by
+     * index
+     */
+    private List<String> entries = new ArrayList<>();
+
+    /**
+     * Numeric interpretation of each entry parsed when the entry is put
+     */
+    private double[] numbers = new double[16];
+    private BitSet numeric = new BitSet();
+
     /**
      * Adda new value to the dataset with (key<sub>1</sub>, key<sub>2</sub>,
      * ..., key<sub>n</sub>)->(value). The keys are used as the second argument
@@ -64,7 +84,28 @@ public class Dataset {
             }
             v = (TreeMap<Integer, Object>) v.get(ids.get(i));
         }
-        v.put(ids.get(ids.size() - 1), value);
+        Integer lastId = ids.get(ids.size() - 1);
+        Object index = v.get(lastId);
+        if (index instanceof Integer) {
+            entries.set((Integer) index, value);
+            parse((Integer) index, value);
+        } else {
+            v.put(lastId, entries.size());
+            entries.add(value);
+            parse(entries.size() - 1, value);
+        }
+    }
+
+    private void parse(int index, String value) {
+        if (Numbers.isNumber(value)) {
+            if (index >= numbers.length) {
+                numbers = Arrays.copyOf(numbers, Math.max(index + 1, numbers.length * 2));
+            }
+            numbers[index] = Numbers.parse(value);
+            numeric.set(index);
+        } else {
+            numeric.clear(index);
+        }
     }
 
     /**
@@ -93,10 +134,98 @@ public class Dataset {
                 v = (TreeMap<Integer, Object>) o;
             } else {
                 LOG.warn("Could not resolve id " + ids.get(i) + " as treemap");
-                return (String) v.get(ids.get(lastIdIndex));
+                return entry(v.get(ids.get(lastIdIndex)));
             }
         }
-        return (String) v.get(ids.get(lastIdIndex));
+        return entry(v.get(ids.get(lastIdIndex)));
+    }
+
+    /**
+     * Returns the value of the relation identified by the first length
+     * surrogate ids of the key. The ids are sorted in place so that callers may
+     * reuse the same array for each lookup instead of allocating a new key.
+     * 
+     * @param key
+     *            surrogate ids in any order
+     * @param length
+     *            number of ids used from the beginning of the array
+     * @return
+     */
+    public String getWithIds(int[] key, int length) {
+        int index = indexOf(key, length);
+        return index < 0 ? null : valueAt(index);
+    }
+
+    /**
+     * Returns the position of the relation identified by the first length
+     * surrogate ids of the key or -1 if the dataset does not contain such a
+     * relation. The ids are sorted in place. The position may be used to
+     * access the value using {@link #valueAt(int)} until the dataset is
+     * modified.
+     */
+    @SuppressWarnings("unchecked")
+    public int indexOf(int[] key, int length) {
+        if (length == 0) {
+            return -1;
+        }
+        Arrays.sort(key, 0, length);
+        Map<Integer, Object> v = values;
+        int lastIdIndex = length - 1;
+        for (int i = 0; i < lastIdIndex; ++i) {
+            Object o = v.get(key[i]);
+            if (o instanceof TreeMap) {
+                v = (TreeMap<Integer, Object>) o;
+            } else {
+                return -1;
+            }
+        }
+        Object o = v.get(key[lastIdIndex]);
+        return o instanceof Integer ? (Integer) o : -1;
+    }
+
+    /**
+     * Returns the value in the given position
+     * 
+     * @see #indexOf(int[], int)
+     */
+    public String valueAt(int index) {
+        return entries.get(index);
+    }
+
+    /**
+     * Returns true if the value in the given position is a number
+     * 
+     * @see #indexOf(int[], int)
+     */
+    public boolean isNumberAt(int index) {
+        return numeric.get(index);
+    }
+
+    /**
+     * Returns the numeric value in the given position. The value is parsed
+     * once when it is put to the dataset.
+     * 
+     * @throws NumberFormatException
+     *             if the value is not a number
+     * @see #isNumberAt(int)
+     */
+    public double numberAt(int index) {
+        if (!isNumberAt(index)) {
+            throw new NumberFormatException("Not a number: " + valueAt(index));
+        }
+        return numbers[index];
+    }
+
+    /**
+     * Returns a rough estimate of the heap used by the dataset in bytes. Used
+     * to weigh datasets when they are cached.
+     */
+    public long estimateSize() {
+        return (long) entries.size() * ESTIMATED_ENTRY_SIZE + numbers.length * 8L;
+    }
+
+    private String entry(Object index) {
+        return index instanceof Integer ? entries.get((Integer) index) : null;
     }
 
     private String stringIds(Collection<DimensionNode> keys) {
@@ -60,6 +60,14 @@ public class Dimension {
         return null;
     }
 
+    /**
+     * Numbers the nodes of the dimension tree so that ancestor tests do not
+     * have to walk the tree. Must be called again if the tree is modified.
+     */
+    public void indexHierarchy() {
+        getRootNode().index(1);
+    }
+
     public String getId() {
         return id;
     }
@@ -37,12 +37,7 @@ public class DimensionLevel {
     }
 
     public List<DimensionNode> getNodes() {
-        if (!sorted) {
-            Collections.sort(nodes);
-            sorted = true;
-        }
-
-        return Lists.newArrayList(Collections2.filter(nodes, new Predicate<DimensionNode>() {
+        return Lists.newArrayList(Collections2.filter(getAllNodes(), new Predicate<DimensionNode>() {
             @Override
             public boolean apply(DimensionNode input) {
                 return input.canAccess();
@@ -50,6 +45,18 @@ public class DimensionLevel {
         }));
     }
 
+    /**
+     * Returns all nodes of the level in sort order regardless of the role of
+     * the user
+     */
+    public List<DimensionNode> getAllNodes() {
+        if (!sorted) {
+            Collections.sort(nodes);
+            sorted = true;
+        }
+        return Collections.unmodifiableList(nodes);
+    }
+
     public DimensionLevel getParentLevel() {
         return parent;
     }
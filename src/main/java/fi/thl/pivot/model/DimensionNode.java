@@ -8,13 +8,14 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
 
 import fi.thl.pivot.util.Constants;
 import fi.thl.pivot.util.ThreadRole;
+import fi.thl.pivot.web.Role;
 
 /**
  * Holds metadata and hierarchy of each node in a dimension
@@ -28,18 +29,29 @@ public class DimensionNode implements Comparable<DimensionNode> {
     private final DimensionLevel level;
     private String id;
     private final Label label;
-    private final List<DimensionNode> children;
     private DimensionNode parent;
 
-    private Map<String, Long> sort = new HashMap<>();
+    // Most nodes are leaves without properties so collections are only
+    // allocated when the first element is added
+    private List<DimensionNode> children = Collections.emptyList();
+    private Map<String, Long> sort = Collections.emptyMap();
     private String code;
     private int decimals;
-    private Map<String, Label> properties = new HashMap<>();
+    private Map<String, Label> properties = Collections.emptyMap();
     private int surrogateId;
     private int hashCode;
-    private List<String> passwords = new ArrayList<>();
+    private List<String> passwords = Collections.emptyList();
     private String reference;
-    private Map<String, DimensionNode> edges = new HashMap<>();
+    private Map<String, DimensionNode> edges = Collections.emptyMap();
+
+    // Position of the node in an Euler tour of the dimension tree, see
+    // Dimension#indexHierarchy(). Zero if the tree has not been indexed.
+    private int enter;
+    private int exit;
+
+    // Sorted and access filtered children by language and role, see
+    // #getChildren()
+    private volatile ConcurrentMap<String, List<DimensionNode>> childViews;
 
     public DimensionNode(DimensionLevel level, String id, Label label) {
         Preconditions.checkNotNull(id, "Dimension node must have a non-null identifier");
@@ -49,7 +61,6 @@ public class DimensionNode implements Comparable<DimensionNode> {
         this.level = level;
         this.id = id;
         this.label = label;
-        children = new ArrayList<>();
     }
 
     public boolean isMeasure() {
@@ -87,33 +98,74 @@ public class DimensionNode implements Comparable<DimensionNode> {
         return parent;
     }
 
+    /**
+     * Returns the children the current user may access sorted in the current
+     * language. The result is computed once for each language and role and
+     * shared by all later calls so it must not be modified.
+     */
     public Collection<DimensionNode> getChildren() {
-        final boolean canAccess = canAccess();
-        Collections.sort(children);
-        return Collections2.filter(children, new Predicate<DimensionNode>() {
-
-            @Override
-            public boolean apply(DimensionNode input) {
-                if (!canAccess) {
-                    return false;
-                }
-                if (input.passwords.isEmpty()) {
-                    return true;
-                }
-                if (ThreadRole.getRole() != null && ThreadRole.getRole().matches(input.passwords)) {
-                    return true;
-                }
-                return false;
+        return getChildView();
+    }
+
+    private List<DimensionNode> getChildView() {
+        if (children.isEmpty()) {
+            return Collections.emptyList();
+        }
+        ConcurrentMap<String, List<DimensionNode>> views = childViews;
+        if (null == views) {
+            views = new ConcurrentHashMap<>(4);
+            childViews = views;
+        }
+        String key = childViewKey();
+        List<DimensionNode> view = views.get(key);
+        if (null == view) {
+            view = createChildView();
+            views.put(key, view);
+        }
+        return view;
+    }
+
+    private List<DimensionNode> createChildView() {
+        if (!canAccess()) {
+            return Collections.emptyList();
+        }
+        Role role = ThreadRole.getRole();
+        List<DimensionNode> view = new ArrayList<>(children.size());
+        for (DimensionNode child : children) {
+            if (child.passwords.isEmpty() || (null != role && role.matches(child.passwords))) {
+                view.add(child);
             }
-        });
+        }
+        Collections.sort(view);
+        return Collections.unmodifiableList(view);
+    }
+
+    private static String childViewKey() {
+        Role role = ThreadRole.getRole();
+        if (null == role) {
+            return ThreadRole.getLanguage();
+        }
+        if (Role.Type.Master == role.getType()) {
+            return ThreadRole.getLanguage() + "/master";
+        }
+        return ThreadRole.getLanguage() + "/role/" + role.getPassword();
+    }
+
+    /**
+     * Returns all children in their current order regardless of the role of
+     * the user
+     */
+    List<DimensionNode> getAllChildren() {
+        return children;
     }
 
     public DimensionNode getFirstChild() {
-        return new ArrayList<>(getChildren()).get(0);
+        return getChildView().get(0);
     }
 
     public void sortChildren(Comparator<DimensionNode> comparator) {
         Collections.sort(children, comparator);
+        childViews = null;
     }
 
     void setParent(final DimensionNode node) {
@@ -127,11 +179,16 @@ public class DimensionNode implements Comparable<DimensionNode> {
     }
 
     protected void addChild(DimensionNode node) {
+        if (this.children.isEmpty()) {
+            this.children = new ArrayList<>(4);
+        }
         this.children.add(node);
+        this.childViews = null;
     }
 
     protected void removeChild(DimensionNode node) {
         this.children.remove(node);
+        this.childViews = null;
     }
 
     public int hashCode() {
@@ -156,7 +213,13 @@ public class DimensionNode implements Comparable<DimensionNode> {
     }
 
     public boolean ancestorOf(DimensionNode node) {
-        if (node == this || node.equals(this)) {
+        if (node == this) {
+            return true;
+        }
+        if (isIndexedWith(node)) {
+            return enter <= node.enter && node.exit <= exit;
+        }
+        if (node.equals(this)) {
             return true;
         }
         DimensionNode aParent = node.parent;
@@ -177,9 +240,16 @@ public class DimensionNode implements Comparable<DimensionNode> {
         if(null == language || language.length() == 0) {
             language=DEFAULT;
         }
+        if (this.sort.isEmpty()) {
+            this.sort = new HashMap<>(4);
+        }
         this.sort.put(language, sort);
     }
 
+    Map<String, Long> getSorts() {
+        return sort;
+    }
+
     public Long getSort() {
         Long s = sort.get(ThreadRole.getLanguage());
         if(null == s) {
@@ -207,16 +277,28 @@ public class DimensionNode implements Comparable<DimensionNode> {
         this.decimals = decimals;
     }
 
+    /**
+     * Sets the value of a property in a given language. Property labels are
+     * created in the label store of the node label so that nodes of a source
+     * share a single store.
+     */
     public void setProperty(String predicate, String language, String value) {
         if (properties.containsKey(predicate)) {
             properties.get(predicate).setValue(language, value);
         } else {
-            Label property = new Label();
-            label.setValue(language, value);
-            properties.put(predicate, property);
+            Label property = label.createInSameStore();
+            property.setValue(language, value);
+            putProperty(predicate, property);
         }
     }
 
+    void putProperty(String predicate, Label property) {
+        if (properties.isEmpty()) {
+            properties = new HashMap<>(4);
+        }
+        properties.put(predicate, property);
+    }
+
     @Override
     public int compareTo(DimensionNode o) {
         return getSort().compareTo(o.getSort());
@@ -241,6 +323,9 @@ public class DimensionNode implements Comparable<DimensionNode> {
      *         <li>false if parent canditate is this node or non ancestor
      */
     public boolean descendentOf(DimensionNode parentCandidate) {
+        if (isIndexedWith(parentCandidate)) {
+            return parentCandidate.enter < enter && exit < parentCandidate.exit;
+        }
         if (null == this.parent) {
             return false;
         }
@@ -250,6 +335,33 @@ public class DimensionNode implements Comparable<DimensionNode> {
         return this.parent.descendentOf(parentCandidate);
     }
 
+    /**
+     * Numbers the node and its descendants in depth first order so that the
+     * interval of each node contains the intervals of its descendants.
+     * 
+     * @param counter
+     *            next free number
+     * @return next free number after the subtree
+     */
+    int index(int counter) {
+        // Passwords may have changed since the views were created
+        childViews = null;
+        enter = counter++;
+        for (DimensionNode child : children) {
+            counter = child.index(counter);
+        }
+        exit = counter++;
+        return counter;
+    }
+
+    /**
+     * Intervals are only comparable when both nodes are numbered in the same
+     * tree
+     */
+    private boolean isIndexedWith(DimensionNode node) {
+        return enter > 0 && node.enter > 0 && level.getDimension() == node.level.getDimension();
+    }
+
     /**
      * Adds a new password for the node. Node may contains multiple passwords if
      * multiple different roles may access the node or it's descendents.
@@ -257,6 +369,9 @@ public class DimensionNode implements Comparable<DimensionNode> {
      * @param value
      */
     public void setPassword(String value) {
+        if (this.passwords.isEmpty()) {
+            this.passwords = new ArrayList<>(2);
+        }
         this.passwords.add(value);
     }
 
@@ -281,6 +396,27 @@ public class DimensionNode implements Comparable<DimensionNode> {
         return ThreadRole.getRole().matches(passwords);
     }
 
+    /**
+     * Node is visible if it would be listed by {@link #getChildren()} of its
+     * parent when navigating down from the root i.e. if the user may access
+     * every password protected node between the root and this node.
+     * 
+     * @return
+     */
+    public boolean isVisible() {
+        Role role = ThreadRole.getRole();
+        for (DimensionNode node = this; null != node; node = node.parent) {
+            if (!node.passwords.isEmpty() && (null == role || !role.matches(node.passwords))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    List<String> getPasswords() {
+        return passwords;
+    }
+
     public void setReference(String key) {
         this.reference = key;
     }
@@ -290,9 +426,16 @@ public class DimensionNode implements Comparable<DimensionNode> {
     }
 
     public void addEdge(String value, DimensionNode dimensionNode) {
+        if (this.edges.isEmpty()) {
+            this.edges = new HashMap<>(4);
+        }
         this.edges.put(value, dimensionNode);
     }
 
+    Map<String, DimensionNode> getEdges() {
+        return edges;
+    }
+
     public DimensionNode getConfidenceUpperLimitNode() {
         return edges.get(Constants.CONFIDENCE_INTERVAL_UPPER_LIMIT);
     }
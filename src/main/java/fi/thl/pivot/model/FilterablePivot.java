@@ -1,11 +1,14 @@
 package fi.thl.pivot.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import org.apache.log4j.Logger;
 
@@ -15,14 +18,24 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Sets;
 
-import fi.thl.pivot.util.Functions;
+import fi.thl.pivot.util.IndexSort;
 
 public class FilterablePivot extends AbstractPivotForwarder {
 
     private static final Logger LOG = Logger.getLogger(FilterablePivot.class);
 
+    /**
+     * Tables with fewer cells than this are always filtered in the calling
+     * thread as splitting the work would cost more than it saves
+     */
+    private static final int PARALLEL_THRESHOLD = 65536;
+
+    /**
+     * Maximum number of cells evaluated by a single parallel task
+     */
+    private static final int TILE_SIZE = 8192;
+
     private static interface HeaderCallback {
         DimensionNode getHeaderAt(int level, int index);
     }
@@ -31,15 +44,29 @@ public class FilterablePivot extends AbstractPivotForwarder {
     private List<PivotLevel> filteredColumns = null;
 
     private long totalTimeSpent;
-    private List<Integer> rowIndices;
-    private List<Integer> columnIndices;
+
+    private int parallelThreshold = PARALLEL_THRESHOLD;
+    private int tileSize = TILE_SIZE;
+
+    /**
+     * Indices of shown rows and columns in the delegate pivot
+     */
+    private int[] rowIndices;
+    private int[] columnIndices;
+
+    /**
+     * Inverse of columnIndices: the position of each delegate column in this
+     * pivot or -1 if the column is filtered
+     */
+    private int[] columnPositions;
     private List<PivotLevel> rows;
     private List<PivotLevel> columns;
 
     public FilterablePivot(Pivot delegate) {
         super(delegate);
-        this.rowIndices = new ArrayList<>(Functions.upto(delegate.getRowCount()));
-        this.columnIndices = new ArrayList<>(Functions.upto(delegate.getColumnCount()));
+        this.rowIndices = IndexSort.identity(delegate.getRowCount());
+        this.columnIndices = IndexSort.identity(delegate.getColumnCount());
+        this.columnPositions = IndexSort.identity(delegate.getColumnCount());
         this.rows = delegate.getRows();
         this.columns = delegate.getColumns();
     }
@@ -51,37 +78,41 @@ public class FilterablePivot extends AbstractPivotForwarder {
 
     @Override
     public boolean isColumn(int column, int targetColumn) {
-        return columnIndices.indexOf(column) == targetColumn;
+        return positionOf(column) == targetColumn;
     }
 
     @Override
     public int getColumnNumber(int column) {
-        return delegate.getColumnNumber(columnIndices.indexOf(column));
+        return delegate.getColumnNumber(positionOf(column));
+    }
+
+    private int positionOf(int column) {
+        return column >= 0 && column < columnPositions.length ? columnPositions[column] : -1;
     }
 
     @Override
     public PivotCell getCellAt(int row, int column) {
-        return new PivotCellForwarder(super.getCellAt(rowIndices.get(row), columnIndices.get(column)), row, column);
+        return new PivotCellForwarder(super.getCellAt(rowIndices[row], columnIndices[column]), row, column);
     }
 
     @Override
     public DimensionNode getRowAt(int level, int row) {
-        return super.getRowAt(level, rowIndices.get(row));
+        return super.getRowAt(level, rowIndices[row]);
     }
 
     @Override
     public DimensionNode getColumnAt(int level, int column) {
-        return super.getColumnAt(level, columnIndices.get(column));
+        return super.getColumnAt(level, columnIndices[column]);
     }
 
     @Override
     public int getRowCount() {
-        return rowIndices.size();
+        return rowIndices.length;
     }
 
     @Override
     public int getColumnCount() {
-        return columnIndices.size();
+        return columnIndices.length;
     }
 
     public void applyFilter(Predicate<PivotCell> filter) {
@@ -90,7 +121,34 @@ public class FilterablePivot extends AbstractPivotForwarder {
     }
 
     public void applyFilters(List<Predicate<PivotCell>> filters) {
-        LOG.debug("Applying filters " + filters + " table size [" + rowIndices.size() + ", " + columnIndices.size() + "]");
+        applyFilters(filters, null);
+    }
+
+    /**
+     * Overrides the table size above which filtering is done in parallel and
+     * the number of cells evaluated by a single task. Used in tests so that
+     * small tables are split into several tasks.
+     */
+    void setParallelLimits(int parallelThreshold, int tileSize) {
+        this.parallelThreshold = parallelThreshold;
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Applies filters to the table. If a pool is given and the table is large
+     * enough, the table is split into tiles of rows and columns that are
+     * filtered in parallel in the pool. In that case the delegate must support
+     * concurrent access to its cells, e.g. a {@link ModifiablePivot} whose
+     * cells have been materialized.
+     * 
+     * @param filters
+     *            predicates that return true if cell should be filtered out
+     * @param pool
+     *            pool used for parallel filtering or null if the table should
+     *            be filtered in the calling thread
+     */
+    public void applyFilters(List<Predicate<PivotCell>> filters, ForkJoinPool pool) {
+        LOG.debug("Applying filters " + filters + " table size [" + rowIndices.length + ", " + columnIndices.length + "]");
         if (filters.isEmpty()) {
             return;
         }
@@ -101,43 +159,47 @@ public class FilterablePivot extends AbstractPivotForwarder {
         //
         // Note that the method may be called more
         // than once
-        Set<Integer> filteredRows = Functions.upto(getRowCount());
-        Set<Integer> filteredColumns = Functions.upto(getColumnCount());
+        BitSet shownRows = new BitSet(getRowCount());
+        BitSet shownColumns = new BitSet(getColumnCount());
 
         // goes through the whole multidimensional table
         // and applies the filter for each cell
-        applyFiltersForEachCell(filters, filteredRows, filteredColumns);
-        updateFilteredHeaderCounts(filteredRows, filteredColumns);
+        applyFiltersForEachCell(filters, pool, shownRows, shownColumns);
+        shownRows.flip(0, getRowCount());
+        shownColumns.flip(0, getColumnCount());
+        updateFilteredHeaderCounts(shownRows, shownColumns);
 
         filteredRows = null;
         filteredColumns = null;
     }
 
-    private void updateFilteredHeaderCounts(Set<Integer> filteredRows, Set<Integer> filteredColumns) {
-        // Update row indices and row count to match the
-        // number of shown rows af filteration
-        // rowIndices.removeAll(filteredRows);
-        List<Integer> r = new ArrayList<>(filteredRows);
-        Collections.sort(r);
-        Collections.reverse(r);
-        for (int i : r) {
-            int row = rowIndices.remove(i);
-            for(int column = 0; column < delegate.getColumnCount(); ++column) {
-                delegate.filterCellAt(row, column);
-            }
+    /**
+     * Removes hidden rows and columns from the shown indices
+     * 
+     * @param hiddenRows
+     *            positions of rows to hide
+     * @param hiddenColumns
+     *            positions of columns to hide
+     */
+    private void updateFilteredHeaderCounts(BitSet hiddenRows, BitSet hiddenColumns) {
+        rowIndices = retain(rowIndices, hiddenRows);
+        columnIndices = retain(columnIndices, hiddenColumns);
+
+        Arrays.fill(columnPositions, -1);
+        for (int i = 0; i < columnIndices.length; ++i) {
+            columnPositions[columnIndices[i]] = i;
         }
+    }
 
-        // Update column indices and column count to match the
-        // number of shown rows af filteration
-        List<Integer> c = new ArrayList<>(filteredColumns);
-        Collections.sort(c);
-        Collections.reverse(c);
-        for (int i : c) {
-            int column = columnIndices.remove(i);
-            for(int row = 0; row < delegate.getRowCount(); ++row) {
-                delegate.filterCellAt(row, column);
+    private static int[] retain(int[] indices, BitSet removed) {
+        int[] retained = new int[indices.length - removed.get(0, indices.length).cardinality()];
+        int target = 0;
+        for (int i = 0; i < indices.length; ++i) {
+            if (!removed.get(i)) {
+                retained[target++] = indices[i];
             }
         }
+        return retained;
     }
 
     @Override
@@ -181,54 +243,125 @@ public class FilterablePivot extends AbstractPivotForwarder {
     }
 
     /**
-     * Traverses the dataset and removes all rows and columns where filter
-     * returns true for each cell in row or column. The filter collections lists
-     * all row and column indices that should not be visible after filter has
-     * been applied
+     * Traverses the dataset and marks all rows and columns that contain a cell
+     * for which a filter returns false. Rows and columns not marked are hidden
+     * after the filters have been applied
      * 
      * @param filter
      *            predicate that returns true if cell should be filtered out
-     * @param filteredRows
-     *            hidden row indices
-     * @param filteredColumns
-     *            hidden column indices
+     * @param shownRows
+     *            shown row indices
+     * @param shownColumns
+     *            shown column indices
      */
-    private void applyFiltersForEachCell(List<Predicate<PivotCell>> filter, Set<Integer> filteredRows, Set<Integer> filteredColumns) {
-        if (columnIndices.size() == 0) {
-            applyFiltersForSingleDimensionCubes(filter, rowIndices.size(), true, filteredRows);
-        } else if (rowIndices.size() == 0) {
-            applyFiltersForSingleDimensionCubes(filter, columnIndices.size(), false, filteredColumns);
+    private void applyFiltersForEachCell(List<Predicate<PivotCell>> filter, ForkJoinPool pool, BitSet shownRows, BitSet shownColumns) {
+        int rowCount = rowIndices.length;
+        int columnCount = columnIndices.length;
+        if (columnCount == 0) {
+            applyFiltersForSingleDimensionCubes(filter, rowCount, true, shownRows);
+        } else if (rowCount == 0) {
+            applyFiltersForSingleDimensionCubes(filter, columnCount, false, shownColumns);
+        } else if (null != pool && (long) rowCount * columnCount >= parallelThreshold) {
+            BitSet[] shown = pool.invoke(new FilterTask(filter, 0, rowCount, 0, columnCount));
+            shownRows.or(shown[0]);
+            shownColumns.or(shown[1]);
         } else {
-            applyFiltersForAllCells(filter, filteredRows, filteredColumns);
+            applyFiltersForAllCells(filter, shownRows, shownColumns);
         }
     }
 
-    private void applyFiltersForAllCells(List<Predicate<PivotCell>> filters, Set<Integer> filteredRows, Set<Integer> filteredColumns) {
+    private void applyFiltersForAllCells(List<Predicate<PivotCell>> filters, BitSet shownRows, BitSet shownColumns) {
         long i = 0L;
-        for (int column = 0; column < columnIndices.size(); ++column) {
-            for (int row = 0; row < rowIndices.size(); ++row) {
-                for (Predicate<PivotCell> filter : filters) {
-                    PivotCell cell = getCellAt(row, column);
-                    if (!filter.apply(cell)) {
-                        filteredRows.remove(row);
-                        filteredColumns.remove(column);
-                        break;
-                    }
-                }
+        for (int column = 0; column < columnIndices.length; ++column) {
+            for (int row = 0; row < rowIndices.length; ++row) {
+                applyFiltersForCell(filters, row, column, shownRows, shownColumns);
                 if (++i % 100000 == 0) {
-                    LOG.debug("Filter applied to " + i + " cells / " + (columnIndices.size() * rowIndices.size()));
+                    LOG.debug("Filter applied to " + i + " cells / " + (columnIndices.length * rowIndices.length));
                     LOG.debug(totalTimeSpent);
                 }
             }
         }
     }
 
-    private void applyFiltersForSingleDimensionCubes(List<Predicate<PivotCell>> filters, int max, boolean isRow, Set<Integer> nodes) {
+    private void applyFiltersForCell(List<Predicate<PivotCell>> filters, int row, int column, BitSet shownRows, BitSet shownColumns) {
+        if (shownRows.get(row) && shownColumns.get(column)) {
+            // The cell cannot change the outcome
+            return;
+        }
+        PivotCell cell = getCellAt(row, column);
+        for (Predicate<PivotCell> filter : filters) {
+            if (!filter.apply(cell)) {
+                shownRows.set(row);
+                shownColumns.set(column);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Applies filters to a tile of the table. Tiles larger than the tile size
+     * are split in half along the longer side. Each tile marks shown rows and
+     * columns in its own bit sets which are merged when the subtasks complete.
+     */
+    private final class FilterTask extends RecursiveTask<BitSet[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Predicate<PivotCell>> filters;
+        private final int fromRow;
+        private final int toRow;
+        private final int fromColumn;
+        private final int toColumn;
+
+        private FilterTask(List<Predicate<PivotCell>> filters, int fromRow, int toRow, int fromColumn, int toColumn) {
+            this.filters = filters;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.fromColumn = fromColumn;
+            this.toColumn = toColumn;
+        }
+
+        @Override
+        protected BitSet[] compute() {
+            int rowCount = toRow - fromRow;
+            int columnCount = toColumn - fromColumn;
+            if ((long) rowCount * columnCount <= tileSize || (rowCount == 1 && columnCount == 1)) {
+                BitSet shownRows = new BitSet(toRow);
+                BitSet shownColumns = new BitSet(toColumn);
+                for (int row = fromRow; row < toRow; ++row) {
+                    for (int column = fromColumn; column < toColumn; ++column) {
+                        applyFiltersForCell(filters, row, column, shownRows, shownColumns);
+                    }
+                }
+                return new BitSet[] { shownRows, shownColumns };
+            }
+
+            FilterTask first;
+            FilterTask second;
+            if (rowCount >= columnCount) {
+                int middle = fromRow + rowCount / 2;
+                first = new FilterTask(filters, fromRow, middle, fromColumn, toColumn);
+                second = new FilterTask(filters, middle, toRow, fromColumn, toColumn);
+            } else {
+                int middle = fromColumn + columnCount / 2;
+                first = new FilterTask(filters, fromRow, toRow, fromColumn, middle);
+                second = new FilterTask(filters, fromRow, toRow, middle, toColumn);
+            }
+            second.fork();
+            BitSet[] shown = first.compute();
+            BitSet[] other = second.join();
+            shown[0].or(other[0]);
+            shown[1].or(other[1]);
+            return shown;
+        }
+    }
+
+    private void applyFiltersForSingleDimensionCubes(List<Predicate<PivotCell>> filters, int max, boolean isRow, BitSet shown) {
         for (int row = 0; row < max; ++row) {
             PivotCellImpl cell = isRow ? createSentinelCell(row, 0) : createSentinelCell(0, row);
             for (Predicate<PivotCell> filter : filters) {
                 if (!filter.apply(cell)) {
-                    nodes.remove(row);
+                    shown.set(row);
                     break;
                 }
             }
@@ -248,34 +381,34 @@ public class FilterablePivot extends AbstractPivotForwarder {
         filteredColumns = null;
     }
 
-    private Set<Integer> filterHieararchyInRows() {
-        Set<Integer> newFilteredRows = Sets.newHashSet();
+    private BitSet filterHieararchyInRows() {
+        BitSet newFilteredRows = new BitSet();
         List<PivotLevel> someRows = getRows();
 
         Multimap<Dimension, Integer> dims = determineDimensionInRow(someRows);
         Map<Dimension, Collection<Integer>> asMap = dims.asMap();
         if (asMap.size() != someRows.size()) {
-            for (Integer i = 0; i < rowIndices.size(); ++i) {
+            for (int i = 0; i < rowIndices.length; ++i) {
                 boolean filtered = determineIfRowShouldBeFiltered(asMap, i);
                 if (filtered) {
-                    newFilteredRows.add(rowIndices.get(i));
+                    newFilteredRows.set(i);
                 }
             }
         }
         return newFilteredRows;
     }
 
-    private Set<Integer> filterHieararchyInColumns() {
-        Set<Integer> newFilteredColumns = Sets.newHashSet();
+    private BitSet filterHieararchyInColumns() {
+        BitSet newFilteredColumns = new BitSet();
         List<PivotLevel> someColumns = getColumns();
 
         Multimap<Dimension, Integer> dims = determineDimensionInColumn(someColumns);
         Map<Dimension, Collection<Integer>> asMap = dims.asMap();
         if (asMap.size() != someColumns.size()) {
-            for (Integer i = 0; i < columnIndices.size(); ++i) {
+            for (int i = 0; i < columnIndices.length; ++i) {
                 boolean filtered = determineIfColumnShouldBeFiltered(asMap, i);
                 if (filtered) {
-                    newFilteredColumns.add(columnIndices.get(i));
+                    newFilteredColumns.set(i);
                 }
             }
         }
@@ -335,7 +468,7 @@ public class FilterablePivot extends AbstractPivotForwarder {
 
     private Multimap<Dimension, Integer> determineDimensionInRow(List<PivotLevel> rows) {
         Multimap<Dimension, Integer> dims = ArrayListMultimap.create();
-        if (rowIndices.size() > 1) {
+        if (rowIndices.length > 1) {
             for (int i = 0; i < rows.size(); ++i) {
                 DimensionNode rowHeader = getRowAt(i, 0);
                 dims.put(rowHeader.getDimension(), i);
@@ -346,7 +479,7 @@ public class FilterablePivot extends AbstractPivotForwarder {
 
     private Multimap<Dimension, Integer> determineDimensionInColumn(List<PivotLevel> column) {
         Multimap<Dimension, Integer> dims = ArrayListMultimap.create();
-        if (columnIndices.size() > 1) {
+        if (columnIndices.length > 1) {
             for (int i = 0; i < column.size(); ++i) {
                 DimensionNode columnHeader = getColumnAt(i, 0);
                 dims.put(columnHeader.getDimension(), i);
@@ -8,13 +8,40 @@ import com.google.common.collect.Maps;
  * 
  * Provides implementation for i18n strings for the model
  * 
+ * Labels of dimension nodes are created by a {@link LabelStore} shared by all
+ * nodes of a source and only hold their position in the store. Other labels
+ * hold their own values.
+ * 
  * @author aleksiyrttiaho
  * 
  */
 public class Label {
 
     private static final String DEFAULT = "default";
-    private final Map<String, String> values = Maps.newHashMap();
+
+    private final LabelStore store;
+    private final int ordinal;
+    private final Map<String, String> values;
+
+    public Label() {
+        this.store = null;
+        this.ordinal = -1;
+        this.values = Maps.newHashMap();
+    }
+
+    Label(LabelStore store, int ordinal) {
+        this.store = store;
+        this.ordinal = ordinal;
+        this.values = null;
+    }
+
+    /**
+     * Creates an empty label in the store of this label, or a label with its
+     * own values if this label is not backed by a store
+     */
+    Label createInSameStore() {
+        return null == store ? new Label() : store.create();
+    }
 
     /**
      * Sets the value of the label in a given language.
@@ -25,10 +52,11 @@ public class Label {
      *            value
      */
     public void setValue(String language, String value) {
-        if(null == language) {
-            values.put(DEFAULT, value);
+        String key = null == language ? DEFAULT : language;
+        if (null == store) {
+            values.put(key, value);
         } else {
-            values.put(language, value);
+            store.setValue(ordinal, key, value);
         }
     }
 
@@ -40,6 +68,16 @@ public class Label {
      * @return value
      */
     public String getValue(String language) {
+        if (null != store) {
+            String value = store.getValue(ordinal, language);
+            if (null == value) {
+                value = store.getValue(ordinal, DEFAULT);
+            }
+            if (null == value) {
+                return "n/a";
+            }
+            return value == LabelStore.NULL_VALUE ? null : value;
+        }
         if (values.containsKey(language)) {
             return values.get(language);
         } else {
@@ -65,8 +103,21 @@ public class Label {
         return label;
     }
 
+    /**
+     * Returns the values of the label by language without the fallback
+     * applied by {@link #getValue(String)}
+     */
+    Map<String, String> asMap() {
+        if (null == store) {
+            return values;
+        }
+        Map<String, String> copy = Maps.newHashMap();
+        store.copyValues(ordinal, copy);
+        return copy;
+    }
+
     @Override
     public String toString() {
-        return values.toString();
+        return asMap().toString();
     }
 }
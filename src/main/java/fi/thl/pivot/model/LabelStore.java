@@ -0,0 +1,105 @@
+package fi.thl.pivot.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shared storage for the labels of a single source. Values are stored in one
+ * array per language indexed by the ordinal of the label and every string is
+ * interned in a table shared by all labels of the store. This avoids a hash
+ * map per label and duplicate copies of strings that repeat across nodes such
+ * as language codes and common labels.
+ *
+ * The store is not thread safe while labels are being set but may be shared
+ * between threads once populated.
+ *
+ */
+public final class LabelStore {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Marks a value that has been explicitly set to null
+     */
+    static final String NULL_VALUE = new String();
+
+    private final Map<String, String> strings = new HashMap<>();
+    private String[] languages = new String[0];
+    private String[][] values = new String[0][];
+    private int capacity = INITIAL_CAPACITY;
+    private int size;
+
+    /**
+     * Creates a new empty label backed by this store
+     */
+    public Label create() {
+        if (size == capacity) {
+            capacity += capacity >> 1;
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = Arrays.copyOf(values[i], capacity);
+            }
+        }
+        return new Label(this, size++);
+    }
+
+    /**
+     * Returns the number of labels in the store
+     */
+    public int size() {
+        return size;
+    }
+
+    void setValue(int ordinal, String language, String value) {
+        int l = languageIndex(language);
+        if (l < 0) {
+            l = languages.length;
+            languages = Arrays.copyOf(languages, l + 1);
+            languages[l] = intern(language);
+            values = Arrays.copyOf(values, l + 1);
+            values[l] = new String[capacity];
+        }
+        values[l][ordinal] = null == value ? NULL_VALUE : intern(value);
+    }
+
+    /**
+     * Returns the value in the language, {@link #NULL_VALUE} if the value has
+     * been set to null or null if the value has not been set
+     */
+    String getValue(int ordinal, String language) {
+        int l = languageIndex(language);
+        return l < 0 ? null : values[l][ordinal];
+    }
+
+    /**
+     * Copies the values of the label to the map
+     */
+    void copyValues(int ordinal, Map<String, String> target) {
+        for (int l = 0; l < languages.length; ++l) {
+            String value = values[l][ordinal];
+            if (null != value) {
+                target.put(languages[l], value == NULL_VALUE ? null : value);
+            }
+        }
+    }
+
+    private int languageIndex(String language) {
+        // Sources have a handful of languages so a linear scan is the fastest
+        // lookup
+        for (int l = 0; l < languages.length; ++l) {
+            if (languages[l].equals(language)) {
+                return l;
+            }
+        }
+        return -1;
+    }
+
+    private String intern(String value) {
+        String interned = strings.get(value);
+        if (null == interned) {
+            strings.put(value, value);
+            interned = value;
+        }
+        return interned;
+    }
+}
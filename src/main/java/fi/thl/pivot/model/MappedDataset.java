@@ -0,0 +1,244 @@
+package fi.thl.pivot.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+
+import fi.thl.pivot.util.LongIntHashMap;
+
+/**
+ * Read only {@link Dataset} backed by a buffer written with
+ * {@link ColumnarDataset#writeTo(java.io.DataOutputStream)}, usually a memory
+ * mapped file. Values are decoded from the buffer when they are accessed so
+ * opening a dataset only reads the header.
+ *
+ * A dataset may be restricted to a subset of its rows with
+ * {@link #select(int[], int)}. The subset shares the buffer with the original
+ * dataset and only stores the positions of the selected rows.
+ *
+ */
+public class MappedDataset extends Dataset {
+
+    static final int MAGIC = 0x54494b47;
+
+    private final ByteBuffer buffer;
+    private final int arity;
+    private final int size;
+    private final String[] markers;
+    private final BitSet numericMarkers;
+    private final double[] markerNumbers;
+    private final int keysOffset;
+    private final int numbersOffset;
+    private final int kindsOffset;
+
+    /**
+     * Selected rows in ascending order or null if all rows are selected
+     */
+    private final int[] rows;
+
+    /**
+     * Reads the header of the dataset from the current position of the buffer
+     *
+     * @throws IllegalArgumentException
+     *             if the buffer does not contain a dataset
+     */
+    public MappedDataset(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Buffer does not contain a dataset");
+        }
+        this.arity = buffer.getInt();
+        this.size = buffer.getInt();
+        this.markers = new String[buffer.getInt()];
+        this.numericMarkers = new BitSet();
+        this.markerNumbers = new double[markers.length];
+        for (int i = 0; i < markers.length; ++i) {
+            byte[] encoded = new byte[buffer.getInt()];
+            buffer.get(encoded);
+            markers[i] = new String(encoded, Charsets.UTF_8);
+            if (Numbers.isNumber(markers[i])) {
+                numericMarkers.set(i);
+                markerNumbers[i] = Numbers.parse(markers[i]);
+            }
+        }
+        this.buffer = buffer;
+        this.keysOffset = buffer.position();
+        this.numbersOffset = keysOffset + arity * size * 4;
+        this.kindsOffset = numbersOffset + size * 8;
+        if (kindsOffset + size > buffer.limit()) {
+            throw new IllegalArgumentException("Buffer is truncated");
+        }
+        this.rows = null;
+    }
+
+    private MappedDataset(MappedDataset source, int[] rows) {
+        this.buffer = source.buffer;
+        this.arity = source.arity;
+        this.size = source.size;
+        this.markers = source.markers;
+        this.numericMarkers = source.numericMarkers;
+        this.markerNumbers = source.markerNumbers;
+        this.keysOffset = source.keysOffset;
+        this.numbersOffset = source.numbersOffset;
+        this.kindsOffset = source.kindsOffset;
+        this.rows = rows;
+    }
+
+    /**
+     * Returns the subset of rows where at least required ids of the row are
+     * among the allowed ids. When the allowed ids are the nodes allowed for
+     * each restricted dimension and required is the number of restricted
+     * dimensions, the subset contains the rows that match every restriction
+     * as each row has exactly one node of each dimension.
+     */
+    public MappedDataset select(int[] allowed, int required) {
+        LongIntHashMap allowedIds = new LongIntHashMap(allowed.length);
+        for (int id : allowed) {
+            allowedIds.put(id, 1);
+        }
+        int[] selected = new int[Math.min(size(), 1024)];
+        int count = 0;
+        for (int i = 0, n = size(); i < n; ++i) {
+            int row = row(i);
+            int matches = 0;
+            for (int c = 0; c < arity && matches < required; ++c) {
+                if (allowedIds.get(key(c, row)) != LongIntHashMap.NOT_FOUND) {
+                    ++matches;
+                }
+            }
+            if (matches >= required) {
+                if (count == selected.length) {
+                    selected = Arrays.copyOf(selected, Math.min(n, count * 2));
+                }
+                selected[count++] = row;
+            }
+        }
+        return new MappedDataset(this, Arrays.copyOf(selected, count));
+    }
+
+    /**
+     * Returns the number of rows in the dataset
+     */
+    public int size() {
+        return null == rows ? size : rows.length;
+    }
+
+    @Override
+    public void put(String value, List<DimensionNode> keys) {
+        throw new UnsupportedOperationException("Mapped datasets are read only");
+    }
+
+    @Override
+    public String get(Collection<DimensionNode> keys) {
+        if (keys.size() != arity) {
+            return null;
+        }
+        int[] ids = new int[keys.size()];
+        int i = 0;
+        for (DimensionNode node : keys) {
+            ids[i++] = node.getSurrogateId();
+        }
+        return getWithIds(ids, ids.length);
+    }
+
+    @Override
+    public String getWithIds(Collection<Integer> keys) {
+        if (keys.size() != arity) {
+            return null;
+        }
+        int[] ids = new int[keys.size()];
+        int i = 0;
+        for (Iterator<Integer> it = keys.iterator(); it.hasNext();) {
+            ids[i++] = it.next();
+        }
+        return getWithIds(ids, ids.length);
+    }
+
+    @Override
+    public int indexOf(int[] key, int length) {
+        if (length != arity) {
+            return -1;
+        }
+        Arrays.sort(key, 0, length);
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int c = compare(row(middle), key);
+            if (c < 0) {
+                low = middle + 1;
+            } else if (c > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String valueAt(int index) {
+        int row = row(index);
+        double number = buffer.getDouble(numbersOffset + row * 8);
+        byte kind = buffer.get(kindsOffset + row);
+        if (kind == ColumnarDataset.MARKER) {
+            return markers[(int) number];
+        }
+        return ColumnarDataset.format(number, kind);
+    }
+
+    @Override
+    public boolean isNumberAt(int index) {
+        int row = row(index);
+        return buffer.get(kindsOffset + row) != ColumnarDataset.MARKER
+                || numericMarkers.get((int) buffer.getDouble(numbersOffset + row * 8));
+    }
+
+    @Override
+    public double numberAt(int index) {
+        int row = row(index);
+        double number = buffer.getDouble(numbersOffset + row * 8);
+        if (buffer.get(kindsOffset + row) != ColumnarDataset.MARKER) {
+            return number;
+        }
+        if (!numericMarkers.get((int) number)) {
+            throw new NumberFormatException("Not a number: " + markers[(int) number]);
+        }
+        return markerNumbers[(int) number];
+    }
+
+    /**
+     * Only the selected rows and markers are on the heap
+     */
+    @Override
+    public long estimateSize() {
+        long bytes = null == rows ? 0 : rows.length * 4L;
+        for (String marker : markers) {
+            bytes += 64 + 2 * marker.length();
+        }
+        return bytes;
+    }
+
+    private int row(int index) {
+        return null == rows ? index : rows[index];
+    }
+
+    private int key(int column, int row) {
+        return buffer.getInt(keysOffset + (column * size + row) * 4);
+    }
+
+    private int compare(int row, int[] ids) {
+        for (int c = 0; c < arity; ++c) {
+            int a = key(c, row);
+            int b = ids[c];
+            if (a != b) {
+                return a < b ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,395 @@
+package fi.thl.pivot.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Compact binary encoding of dimension trees and their labels. Each distinct
+ * string is stored once in a string table and referred to by its index so
+ * repeated languages, predicates and labels do not take space more than once.
+ * Nodes are referred to by their position in the encoding which allows
+ * parents, the order of children and edges between nodes of different
+ * dimensions to be restored exactly.
+ *
+ * The encoding is produced with a {@link Writer} and decoded with a
+ * {@link Reader}. Values must be read in the order they were written.
+ *
+ */
+public final class MetadataCodec {
+
+    private static final int NULL = -1;
+
+    private MetadataCodec() {
+    }
+
+    /**
+     * Encodes values to an in-memory buffer. The string table is only known
+     * after all values are written so the result is available through
+     * {@link #writeTo(DataOutputStream)}.
+     */
+    public static final class Writer {
+
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final List<String> table = new ArrayList<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<DimensionNode, Integer> nodeIndex = new IdentityHashMap<>();
+
+        public void writeInt(int value) throws IOException {
+            out.writeInt(value);
+        }
+
+        public void writeLong(long value) throws IOException {
+            out.writeLong(value);
+        }
+
+        public void writeBoolean(boolean value) throws IOException {
+            out.writeByte(value ? 1 : 0);
+        }
+
+        public void writeString(String value) throws IOException {
+            if (null == value) {
+                out.writeInt(NULL);
+                return;
+            }
+            Integer index = strings.get(value);
+            if (null == index) {
+                index = table.size();
+                strings.put(value, index);
+                table.add(value);
+            }
+            out.writeInt(index);
+        }
+
+        public void writeStrings(Collection<String> values) throws IOException {
+            out.writeInt(values.size());
+            for (String value : values) {
+                writeString(value);
+            }
+        }
+
+        public void writeLabel(Label label) throws IOException {
+            if (null == label) {
+                out.writeInt(NULL);
+                return;
+            }
+            out.writeInt(label.asMap().size());
+            for (Map.Entry<String, String> value : label.asMap().entrySet()) {
+                writeString(value.getKey());
+                writeString(value.getValue());
+            }
+        }
+
+        public void writeLabels(Map<String, Label> labels) throws IOException {
+            out.writeInt(labels.size());
+            for (Map.Entry<String, Label> label : labels.entrySet()) {
+                writeString(label.getKey());
+                writeLabel(label.getValue());
+            }
+        }
+
+        /**
+         * Writes the dimensions with their levels and all nodes regardless of
+         * the role of the current user
+         */
+        public void writeDimensions(Collection<Dimension> dimensions) throws IOException {
+            List<DimensionNode> nodes = new ArrayList<>();
+
+            out.writeInt(dimensions.size());
+            for (Dimension dimension : dimensions) {
+                writeString(dimension.getId());
+                writeLabel(dimension.getLabel());
+                int levels = 0;
+                for (DimensionLevel level = dimension.getRootLevel(); null != level; level = level.getChildLevel()) {
+                    ++levels;
+                }
+                out.writeInt(levels);
+                for (DimensionLevel level = dimension.getRootLevel(); null != level; level = level.getChildLevel()) {
+                    writeString(level.getId());
+                    writeLabel(level.getLabel());
+                    out.writeInt(level.getAllNodes().size());
+                    for (DimensionNode node : level.getAllNodes()) {
+                        nodeIndex.put(node, nodeIndex.size());
+                        nodes.add(node);
+                        writeNode(node);
+                    }
+                }
+            }
+
+            // Relations are written once every node has an index
+            for (DimensionNode node : nodes) {
+                writeNodeReference(node.getParent());
+                out.writeInt(node.getAllChildren().size());
+                for (DimensionNode child : node.getAllChildren()) {
+                    writeNodeReference(child);
+                }
+                out.writeInt(node.getEdges().size());
+                for (Map.Entry<String, DimensionNode> edge : node.getEdges().entrySet()) {
+                    writeString(edge.getKey());
+                    writeNodeReference(edge.getValue());
+                }
+            }
+        }
+
+        /**
+         * Writes the string table followed by the encoded values
+         */
+        public void writeTo(DataOutputStream target) throws IOException {
+            out.flush();
+            target.writeInt(table.size());
+            for (String value : table) {
+                byte[] encoded = value.getBytes(Charsets.UTF_8);
+                target.writeInt(encoded.length);
+                target.write(encoded);
+            }
+            target.writeInt(bytes.size());
+            bytes.writeTo(target);
+        }
+
+        private void writeNode(DimensionNode node) throws IOException {
+            writeString(node.getId());
+            writeLabel(node.getLabel());
+            writeString(node.getReference());
+            writeString(node.getCode());
+            out.writeInt(node.getDecimals());
+            out.writeInt(node.getSurrogateId());
+            out.writeInt(node.getSorts().size());
+            for (Map.Entry<String, Long> sort : node.getSorts().entrySet()) {
+                writeString(sort.getKey());
+                out.writeLong(null == sort.getValue() ? 0L : sort.getValue());
+            }
+            Map<String, Label> properties = new HashMap<>();
+            for (Map.Entry<String, Label> property : node.getProperties()) {
+                properties.put(property.getKey(), property.getValue());
+            }
+            writeLabels(properties);
+            writeStrings(node.getPasswords());
+        }
+
+        /**
+         * Writes a reference to a node of the dimensions already written
+         */
+        public void writeNodeReference(DimensionNode node) throws IOException {
+            Integer i = null == node ? null : nodeIndex.get(node);
+            out.writeInt(null == i ? NULL : i);
+        }
+    }
+
+    /**
+     * Decodes values from a buffer produced by {@link Writer}. The buffer may
+     * be a memory mapped file.
+     */
+    public static final class Reader {
+
+        private final ByteBuffer buffer;
+        private final String[] table;
+        private final List<DimensionNode> nodes = new ArrayList<>();
+        private final LabelStore labels = new LabelStore();
+
+        public Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.table = new String[buffer.getInt()];
+            byte[] encoded = new byte[256];
+            for (int i = 0; i < table.length; ++i) {
+                int length = buffer.getInt();
+                if (length > encoded.length) {
+                    encoded = new byte[Math.max(length, encoded.length * 2)];
+                }
+                buffer.get(encoded, 0, length);
+                table[i] = new String(encoded, 0, length, Charsets.UTF_8);
+            }
+            // Length of the encoded values
+            buffer.getInt();
+        }
+
+        public int readInt() {
+            return buffer.getInt();
+        }
+
+        public long readLong() {
+            return buffer.getLong();
+        }
+
+        public boolean readBoolean() {
+            return buffer.get() != 0;
+        }
+
+        public String readString() {
+            int index = buffer.getInt();
+            return NULL == index ? null : table[index];
+        }
+
+        public List<String> readStrings() {
+            int size = buffer.getInt();
+            List<String> values = new ArrayList<>(size);
+            for (int i = 0; i < size; ++i) {
+                values.add(readString());
+            }
+            return values;
+        }
+
+        public Label readLabel() {
+            int size = buffer.getInt();
+            if (NULL == size) {
+                return null;
+            }
+            Label label = new Label();
+            readValues(label, size);
+            return label;
+        }
+
+        /**
+         * Reads a label into the label store shared by the nodes
+         */
+        private Label readStoredLabel() {
+            int size = buffer.getInt();
+            if (NULL == size) {
+                return null;
+            }
+            Label label = labels.create();
+            readValues(label, size);
+            return label;
+        }
+
+        public Map<String, Label> readLabels() {
+            int size = buffer.getInt();
+            Map<String, Label> labels = new HashMap<>();
+            for (int i = 0; i < size; ++i) {
+                labels.put(readString(), readLabel());
+            }
+            return labels;
+        }
+
+        /**
+         * Reads dimensions written with
+         * {@link Writer#writeDimensions(Collection)}
+         */
+        public List<Dimension> readDimensions() {
+            int size = buffer.getInt();
+            List<Dimension> dimensions = new ArrayList<>(size);
+            int first = nodes.size();
+            Map<DimensionNode, Map<DimensionNode, Integer>> childOrders = new IdentityHashMap<>();
+            for (int i = 0; i < size; ++i) {
+                Dimension dimension = new Dimension(readString(), readLabel(), new Label());
+                int levels = buffer.getInt();
+                DimensionLevel level = dimension.getRootLevel();
+                for (int l = 0; l < levels; ++l) {
+                    String id = readString();
+                    int labelSize = buffer.getInt();
+                    if (l == 0) {
+                        readValues(level.getLabel(), labelSize);
+                    } else {
+                        Label label = new Label();
+                        readValues(label, labelSize);
+                        level = level.addLevel(id, label);
+                    }
+                    int levelNodes = buffer.getInt();
+                    for (int n = 0; n < levelNodes; ++n) {
+                        // The root node is created by the dimension
+                        nodes.add(l == 0 && n == 0 ? readRootNode(dimension) : readNode(level));
+                    }
+                }
+                dimensions.add(dimension);
+            }
+
+            for (int i = first; i < nodes.size(); ++i) {
+                DimensionNode node = nodes.get(i);
+                DimensionNode parent = readNodeReference();
+                if (null != parent) {
+                    node.setParent(parent);
+                }
+                int children = buffer.getInt();
+                Map<DimensionNode, Integer> order = new IdentityHashMap<>(children);
+                for (int c = 0; c < children; ++c) {
+                    order.put(readNodeReference(), c);
+                }
+                order.remove(null);
+                if (!order.isEmpty()) {
+                    childOrders.put(node, order);
+                }
+                int edges = buffer.getInt();
+                for (int e = 0; e < edges; ++e) {
+                    node.addEdge(readString(), readNodeReference());
+                }
+            }
+
+            // Children are ordered once every parent is assigned
+            for (Map.Entry<DimensionNode, Map<DimensionNode, Integer>> childOrder : childOrders.entrySet()) {
+                final Map<DimensionNode, Integer> order = childOrder.getValue();
+                childOrder.getKey().sortChildren(new Comparator<DimensionNode>() {
+                    @Override
+                    public int compare(DimensionNode o1, DimensionNode o2) {
+                        return Integer.compare(position(order, o1), position(order, o2));
+                    }
+                });
+            }
+            return dimensions;
+        }
+
+        private static int position(Map<DimensionNode, Integer> order, DimensionNode node) {
+            Integer position = order.get(node);
+            return null == position ? Integer.MAX_VALUE : position;
+        }
+
+        private DimensionNode readRootNode(Dimension dimension) {
+            DimensionNode node = dimension.getRootLevel().getAllNodes().get(0);
+            node.setId(readString());
+            readValues(node.getLabel(), buffer.getInt());
+            readNodeAttributes(node);
+            return node;
+        }
+
+        private DimensionNode readNode(DimensionLevel level) {
+            String id = readString();
+            Label label = labels.create();
+            readValues(label, buffer.getInt());
+            DimensionNode node = level.createNode(id, label, null);
+            readNodeAttributes(node);
+            return node;
+        }
+
+        private void readNodeAttributes(DimensionNode node) {
+            node.setReference(readString());
+            node.setCode(readString());
+            node.setDecimals(buffer.getInt());
+            node.setSurrogateId(buffer.getInt());
+            int sorts = buffer.getInt();
+            for (int i = 0; i < sorts; ++i) {
+                node.setSort(readString(), buffer.getLong());
+            }
+            int properties = buffer.getInt();
+            for (int i = 0; i < properties; ++i) {
+                String predicate = readString();
+                node.putProperty(predicate, readStoredLabel());
+            }
+            for (String password : readStrings()) {
+                node.setPassword(password);
+            }
+        }
+
+        /**
+         * Reads a reference to a node of the dimensions already read
+         */
+        public DimensionNode readNodeReference() {
+            int index = buffer.getInt();
+            return NULL == index ? null : nodes.get(index);
+        }
+
+        private void readValues(Label label, int size) {
+            for (int i = 0; i < size; ++i) {
+                label.setValue(readString(), readString());
+            }
+        }
+    }
+}
@@ -2,17 +2,16 @@ package fi.thl.pivot.model;
 
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
 
 import org.apache.log4j.Logger;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import fi.thl.pivot.util.Constants;
@@ -21,18 +20,30 @@ import fi.thl.pivot.util.Functions;
 
 public class ModifiablePivot implements Pivot {
 
+    /**
+     * Receives the keys of the cells in the pivot
+     * 
+     * @see ModifiablePivot#visitCellKeys(CellKeyVisitor, boolean)
+     */
+    public interface CellKeyVisitor {
+
+        /**
+         * @param key
+         *            surrogate ids of the cell key in no particular order. The
+         *            buffer is reused between calls and may be modified by
+         *            the visitor.
+         * @param length
+         *            number of ids in the key
+         */
+        void visit(int[] key, int length);
+    }
+
     private static final boolean ASSERT_ENABLED = ModifiablePivot.class.desiredAssertionStatus();
     private static final Logger LOG = Logger.getLogger(ModifiablePivot.class);
 
     private List<PivotLevel> columns = Lists.newArrayList();
     private List<PivotLevel> rows = Lists.newArrayList();
 
-    /**
-     * Cell Cache is a simple optimization that prevents creation of the same
-     * PivotCell object each time the cell is accessed
-     */
-    private Map<Object, PivotCell> cellCache = Maps.newHashMap();
-
     private Set<DimensionNode> constants = Sets.newLinkedHashSet();
 
     private List<Integer> rowIndices = Lists.newArrayList();
@@ -43,17 +54,43 @@ public class ModifiablePivot implements Pivot {
 
     private boolean filtersApplied;
     private Dataset dataset;
-    private int fullColumnCount;
 
     private CumulativeStopWatch sw = new CumulativeStopWatch();
     private DimensionNode defaultMeasure;
     private List<DimensionNode> filterNodes;
     private PivotCellKeyGenerator cellKeyGenerator;
 
+    /**
+     * Reused buffer for looking up values related to a cell such as confidence
+     * intervals and sample sizes
+     */
+    private int[] relatedKey;
+
+    /**
+     * Dataset positions of resolved cells. Cells are resolved either one by one
+     * as they are accessed or in bulk using {@link #materialize()}. Cell
+     * objects are not cached but created on demand from the store.
+     */
+    private PivotCellStore cellStore;
+    private List<DimensionNode> measures = Lists.newArrayList();
+    private Map<DimensionNode, Integer> measureIndices = new IdentityHashMap<>();
+
     public ModifiablePivot(Dataset dataset) {
         this.dataset = dataset;
     }
 
+    /**
+     * Replaces the dataset of the pivot. Used when the dataset is loaded based
+     * on the cells of the pivot.
+     * 
+     * @see #visitCellKeys(CellKeyVisitor, boolean)
+     */
+    public void setDataset(Dataset dataset) {
+        Preconditions.checkNotNull(dataset, "Dataset must not be null");
+        this.dataset = dataset;
+        this.cellStore = null;
+    }
+
     public void logTimeSpent() {
         if (LOG.isDebugEnabled()) {
             LOG.debug(sw.prettyPrint());
@@ -85,11 +122,11 @@ public class ModifiablePivot implements Pivot {
         columns.add(nodes);
 
         columnCount = calculateHeaderCount(columnCount, nodes);
-        fullColumnCount = columnCount;
         columnIndices.clear();
         columnIndices.addAll(Functions.upto(columnCount));
 
         columnCount = removeTotals(columns, columnIndices);
+        invalidateCells();
     }
 
     public void appendRow(PivotLevel nodes) {
@@ -102,6 +139,7 @@ public class ModifiablePivot implements Pivot {
         rowIndices.addAll(Functions.upto(rowCount));
 
         rowCount = removeTotals(rows, rowIndices);
+        invalidateCells();
     }
 
     private int removeTotals(List<PivotLevel> levels, List<Integer> indices) {
@@ -129,6 +167,12 @@ public class ModifiablePivot implements Pivot {
     public void appendConstant(DimensionNode node) {
         Preconditions.checkNotNull(node, "Cannot add null as constant");
         constants.add(node);
+        invalidateCells();
+    }
+
+    private void invalidateCells() {
+        cellKeyGenerator = null;
+        cellStore = null;
     }
 
     /**
@@ -148,77 +192,181 @@ public class ModifiablePivot implements Pivot {
     }
     
     @Override
-    public void filterCellAt(int row, int column) {
-        int cacheKey = createCacheKey(row, column);
-        cellCache.remove(cacheKey);
+    public PivotCell getCellAt(int row, int column) {
+        if (ASSERT_ENABLED) {
+            checkRowBounds(row);
+            checkColumnBounds(column);
+        }
+        prepareCellStore();
+        if (!cellStore.isResolved(row, column)) {
+            resolveCell(row, column);
+        }
+        return createCell(row, column);
     }
 
-    @Override
-    public PivotCell getCellAt(int row, int column) {
+    /**
+     * Resolves the values of all cells in the pivot in a single pass. This is
+     * faster than resolving each cell separately when the pivot is accessed as
+     * a whole e.g. when filters are applied or the pivot is exported.
+     */
+    public void materialize() {
+        materializeRows(0, rowCount);
+    }
 
-        int cacheKey = createCacheKey(row, column);
+    /**
+     * Resolves the values of all cells in rows [fromRow, toRow)
+     */
+    public void materializeRows(int fromRow, int toRow) {
+        if (ASSERT_ENABLED) {
+            Preconditions.checkArgument(fromRow >= 0 && fromRow <= toRow && toRow <= rowCount,
+                    String.format("Row range out of bounds [%d, %d) / %d", fromRow, toRow, rowCount));
+        }
+        prepareCellStore();
+        for (int row = fromRow; row < toRow; ++row) {
+            for (int column = 0; column < columnCount; ++column) {
+                if (!cellStore.isResolved(row, column)) {
+                    resolveCell(row, column);
+                }
+            }
+        }
+    }
 
-        if (cellCache.containsKey(cacheKey)) {
-            return cellCache.get(cacheKey);
+    /**
+     * Passes the key of each cell in the pivot to the visitor. If value types
+     * are included the keys of the confidence intervals and sample sizes of
+     * each cell are visited as well. The keys are the ones used to look up the
+     * cells from the dataset, so a dataset containing only the visited keys
+     * produces the same pivot as the full dataset.
+     */
+    public void visitCellKeys(CellKeyVisitor visitor, boolean includeValueTypes) {
+        prepareCellStore();
+        for (int row = 0; row < rowCount; ++row) {
+            for (int column = 0; column < columnCount; ++column) {
+                int keyLength = cellKeyGenerator.createKey(row, column);
+                int[] key = cellKeyGenerator.getKeyBuffer();
+                DimensionNode measure = cellKeyGenerator.getMeasure();
+                if (includeValueTypes && null != measure) {
+                    visitModifiedKey(visitor, key, keyLength, measure, measure.getConfidenceLowerLimitNode());
+                    visitModifiedKey(visitor, key, keyLength, measure, measure.getConfidenceUpperLimitNode());
+                    visitModifiedKey(visitor, key, keyLength, measure, measure.getSampleSizeNode());
+                }
+                visitor.visit(key, keyLength);
+            }
         }
-        if (ASSERT_ENABLED) {
-            checkRowBounds(row);
-            checkColumnBounds(column);
+    }
+
+    private void visitModifiedKey(CellKeyVisitor visitor, int[] key, int keyLength, DimensionNode measure, DimensionNode replacement) {
+        if (null != replacement && modifyKey(key, keyLength, measure.getSurrogateId(), replacement.getSurrogateId())) {
+            visitor.visit(relatedKey, keyLength);
         }
+    }
+
+    private void prepareCellStore() {
         if (null == cellKeyGenerator) {
             this.cellKeyGenerator = new PivotCellKeyGenerator(this, constants);
         }
-        SortedSet<Integer> key = cellKeyGenerator.createCellKey(row, column);
-        String datum = dataset.getWithIds(key);
-
-        if (null != datum) {
-            PivotCellImpl cell = null;
-            DimensionNode measure = cellKeyGenerator.getMeasure();
-
-            cell = new PivotCellImpl(datum);
-            cell.setKey(cellKeyGenerator.getKey());
-            cell.setFullKey(cellKeyGenerator.getFullKey());
-            cell.setMeasure(measure);
-            cell.setRowNumber(row);
-            cell.setColumnNumber(column);
-
-            setConfidenceInterval(key, measure, cell);
-            setSampleSize(key, measure, cell);
-            
-            cellCache.put(cacheKey, cell);
-            return cell;
-        } else {
-            PivotCell cell = new PivotCellSentinel(row, column);
-            cellCache.put(cacheKey, cell);
-            return cell;
+        if (null == cellStore) {
+            this.cellStore = new PivotCellStore(rowCount, columnCount);
         }
     }
 
-    private int createCacheKey(int row, int column) {
-        int cacheKey = row * fullColumnCount + column;
-        return cacheKey;
-    }
+    /**
+     * Looks up the value of the cell and related confidence interval and
+     * sample size values from the dataset and stores their positions in the
+     * cell store.
+     */
+    private void resolveCell(int row, int column) {
+        int keyLength = cellKeyGenerator.createKey(row, column);
+        int[] key = cellKeyGenerator.getKeyBuffer();
+        int value = dataset.indexOf(key, keyLength);
+        if (value < 0) {
+            cellStore.set(row, column, PivotCellStore.NOT_FOUND, PivotCellStore.NOT_FOUND);
+            return;
+        }
 
-    private void setSampleSize(SortedSet<Integer> key, DimensionNode measure, PivotCellImpl cell) {
+        DimensionNode measure = cellKeyGenerator.getMeasure();
+        cellStore.set(row, column, value, measureIndex(measure));
+        if (null != measure && measure.getConfidenceLowerLimitNode() != null) {
+            cellStore.setConfidenceInterval(row, column,
+                    indexOfModifiedKey(key, keyLength, measure.getSurrogateId(), measure.getConfidenceLowerLimitNode().getSurrogateId()),
+                    indexOfModifiedKey(key, keyLength, measure.getSurrogateId(), measure.getConfidenceUpperLimitNode().getSurrogateId()));
+        }
         if (null != measure && measure.getSampleSizeNode() != null) {
-            cell.setSampleSize(getValueWithModifiedKey(key, measure.getSurrogateId(), measure.getSampleSizeNode().getSurrogateId()));
+            cellStore.setSampleSize(row, column,
+                    indexOfModifiedKey(key, keyLength, measure.getSurrogateId(), measure.getSampleSizeNode().getSurrogateId()));
         }
     }
 
-    private void setConfidenceInterval(SortedSet<Integer> key, DimensionNode measure, PivotCellImpl cell) {
-        if (null != measure && measure.getConfidenceLowerLimitNode() != null) {
-            cell.setConfidenceLowerLimit(getValueWithModifiedKey(key, measure.getSurrogateId(), measure.getConfidenceLowerLimitNode().getSurrogateId()));
-            cell.setConfidenceUpperLimit(getValueWithModifiedKey(key, measure.getConfidenceLowerLimitNode().getSurrogateId(),
-                    measure.getConfidenceUpperLimitNode().getSurrogateId()));
-            key.remove(measure.getConfidenceUpperLimitNode().getSurrogateId());
-            key.add(measure.getSurrogateId());
+    private PivotCell createCell(int row, int column) {
+        int value = cellStore.getValue(row, column);
+        if (value < 0) {
+            return new PivotCellSentinel(row, column);
+        }
+
+        int measure = cellStore.getMeasure(row, column);
+        boolean number = dataset.isNumberAt(value);
+        return new StoredPivotCell(this, dataset.valueAt(value), number, number ? dataset.numberAt(value) : 0.0, measure < 0 ? null : measures.get(measure), row, column);
+    }
+
+    String getConfidenceLowerLimitAt(int row, int column) {
+        return valueAt(cellStore.getConfidenceLowerLimit(row, column));
+    }
+
+    String getConfidenceUpperLimitAt(int row, int column) {
+        return valueAt(cellStore.getConfidenceUpperLimit(row, column));
+    }
+
+    String getSampleSizeAt(int row, int column) {
+        return valueAt(cellStore.getSampleSize(row, column));
+    }
+
+    int[] getFullKeyAt(int row, int column) {
+        return cellKeyGenerator.createFullKey(row, column);
+    }
+
+    private String valueAt(int index) {
+        return index < 0 ? null : dataset.valueAt(index);
+    }
+
+    private int measureIndex(DimensionNode measure) {
+        if (null == measure) {
+            return PivotCellStore.NOT_FOUND;
+        }
+        Integer index = measureIndices.get(measure);
+        if (null == index) {
+            index = measures.size();
+            measures.add(measure);
+            measureIndices.put(measure, index);
         }
+        return index;
     }
 
-    private String getValueWithModifiedKey(SortedSet<Integer> key, Integer a, Integer b) {
-        key.remove(a);
-        key.add(b);
-        return dataset.getWithIds(key);
+    /**
+     * Looks up a value with a key where id a is replaced with id b. The
+     * original key is left intact.
+     */
+    private int indexOfModifiedKey(int[] key, int keyLength, int a, int b) {
+        return modifyKey(key, keyLength, a, b) ? dataset.indexOf(relatedKey, keyLength) : PivotCellStore.NOT_FOUND;
+    }
+
+    /**
+     * Copies the key to the related key buffer replacing id a with id b.
+     * Returns false if the key does not contain a.
+     */
+    private boolean modifyKey(int[] key, int keyLength, int a, int b) {
+        if (null == relatedKey || relatedKey.length < keyLength) {
+            relatedKey = new int[key.length];
+        }
+        boolean replaced = false;
+        for (int i = 0; i < keyLength; ++i) {
+            if (key[i] == a && !replaced) {
+                relatedKey[i] = b;
+                replaced = true;
+            } else {
+                relatedKey[i] = key[i];
+            }
+        }
+        return replaced;
     }
 
     @Override
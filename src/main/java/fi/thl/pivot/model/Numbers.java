@@ -0,0 +1,117 @@
+package fi.thl.pivot.model;
+
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Parsing and formatting of numeric cell values.
+ *
+ * Values are parsed once when they are added to a {@link Dataset}. Formatters
+ * are cached per thread as {@link DecimalFormat} is not thread safe and
+ * creating one for each formatted value is expensive.
+ *
+ */
+final class Numbers {
+
+    /**
+     * Formatters are cached for measures with at most this many decimals
+     */
+    private static final int CACHED_DECIMALS = 16;
+
+    private static final Locale I18N_LOCALE = new Locale("fi");
+
+    private static final ThreadLocal<DecimalFormat[]> PLAIN_FORMATS = new ThreadLocal<DecimalFormat[]>() {
+        @Override
+        protected DecimalFormat[] initialValue() {
+            return new DecimalFormat[CACHED_DECIMALS + 1];
+        }
+    };
+
+    private static final ThreadLocal<DecimalFormat[]> I18N_FORMATS = new ThreadLocal<DecimalFormat[]>() {
+        @Override
+        protected DecimalFormat[] initialValue() {
+            return new DecimalFormat[CACHED_DECIMALS + 1];
+        }
+    };
+
+    private Numbers() {
+    };
+
+    /**
+     * Returns true if the value consists of an optional minus sign, digits and
+     * optionally a decimal point or comma followed by digits. The value must
+     * contain at least one digit.
+     */
+    static boolean isNumber(String value) {
+        if (null == value) {
+            return false;
+        }
+        int length = value.length();
+        int i = length > 0 && value.charAt(0) == '-' ? 1 : 0;
+        boolean digits = false;
+        for (; i < length; ++i) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c == '.' || c == ',') {
+                // At least one digit is required after the separator
+                if (i == length - 1) {
+                    return false;
+                }
+                for (int j = i + 1; j < length; ++j) {
+                    char d = value.charAt(j);
+                    if (d < '0' || d > '9') {
+                        return false;
+                    }
+                }
+                return true;
+            } else {
+                return false;
+            }
+        }
+        return digits;
+    }
+
+    /**
+     * Parses a value accepted by {@link #isNumber(String)}. Decimal comma is
+     * treated as a decimal point.
+     */
+    static double parse(String value) {
+        return Double.parseDouble(value.replace(',', '.'));
+    }
+
+    /**
+     * Formats the value without grouping using the default locale
+     */
+    static String format(double value, int decimals) {
+        return formatter(PLAIN_FORMATS, decimals, false).format(value);
+    }
+
+    /**
+     * Formats the value with grouping using Finnish conventions
+     */
+    static String formatI18n(double value, int decimals) {
+        return formatter(I18N_FORMATS, decimals, true).format(value);
+    }
+
+    private static DecimalFormat formatter(ThreadLocal<DecimalFormat[]> cache, int decimals, boolean i18n) {
+        int index = Math.max(0, decimals);
+        if (index > CACHED_DECIMALS) {
+            return create(index, i18n);
+        }
+        DecimalFormat[] formats = cache.get();
+        if (null == formats[index]) {
+            formats[index] = create(index, i18n);
+        }
+        return formats[index];
+    }
+
+    private static DecimalFormat create(int decimals, boolean i18n) {
+        DecimalFormat nf = i18n ? new DecimalFormat("#,##0.#", DecimalFormatSymbols.getInstance(I18N_LOCALE)) : new DecimalFormat("0.#");
+        nf.setMaximumFractionDigits(decimals);
+        nf.setRoundingMode(RoundingMode.HALF_UP);
+        return nf;
+    }
+}
@@ -1,15 +1,11 @@
 package fi.thl.pivot.model;
 
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
-
 import org.apache.log4j.Logger;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 
-import fi.thl.pivot.util.Functions;
+import fi.thl.pivot.util.IndexSort;
+import fi.thl.pivot.util.IndexSort.IndexComparator;
 
 public class OrderablePivot extends AbstractPivotForwarder {
 
@@ -26,8 +22,17 @@ public class OrderablePivot extends AbstractPivotForwarder {
     private int sortIndex;
     private SortMode sortMode;
 
-    private List<Integer> columnOrder;
-    private List<Integer> rowOrder;
+    /**
+     * Indices of rows and columns in the delegate pivot in sorted order
+     */
+    private int[] columnOrder;
+    private int[] rowOrder;
+
+    /**
+     * Inverse of columnOrder: the position of each delegate column in this
+     * pivot
+     */
+    private int[] columnPositions;
 
     public OrderablePivot(Pivot delegate) {
         super(delegate);
@@ -41,27 +46,28 @@ public class OrderablePivot extends AbstractPivotForwarder {
 
     @Override
     public boolean isColumn(int column, int targetColumn) {
-        return columnOrder.indexOf(column) == targetColumn;
+        int position = column >= 0 && column < columnPositions.length ? columnPositions[column] : -1;
+        return position == targetColumn;
     }
 
     @Override
     public int getColumnNumber(int column) {
-        return delegate.getColumnNumber(columnOrder.get(column));
+        return delegate.getColumnNumber(columnOrder[column]);
     }
 
     @Override
     public PivotCell getCellAt(int row, int column) {
-        return new PivotCellForwarder(delegate.getCellAt(rowOrder.get(row), columnOrder.get(column)), row, column);
+        return new PivotCellForwarder(delegate.getCellAt(rowOrder[row], columnOrder[column]), row, column);
     }
 
     @Override
     public DimensionNode getRowAt(int level, int row) {
-        return super.getRowAt(level, rowOrder.get(row));
+        return super.getRowAt(level, rowOrder[row]);
     }
 
     @Override
     public DimensionNode getColumnAt(int level, int column) {
-        return super.getColumnAt(level, columnOrder.get(column));
+        return super.getColumnAt(level, columnOrder[column]);
     }
 
     public void sortBy(final int sortIndex, SortBy sortBy, SortMode sortMode) {
@@ -73,19 +79,23 @@ public class OrderablePivot extends AbstractPivotForwarder {
         this.sortMode = sortMode;
 
         clearCurrentSortOrder();
-        List<Integer> newColumnOrder = Lists.newArrayList(Functions.upto(getColumnCount()));
-        List<Integer> newRowOrder = Lists.newArrayList(Functions.upto(getRowCount()));
+        int[] newColumnOrder = IndexSort.identity(getColumnCount());
+        int[] newRowOrder = IndexSort.identity(getRowCount());
         applySort(sortBy, newColumnOrder, newRowOrder);
         setSortOrder(newColumnOrder, newRowOrder);
 
     }
 
-    private void setSortOrder(List<Integer> newColumnOrder, List<Integer> newRowOrder) {
+    private void setSortOrder(int[] newColumnOrder, int[] newRowOrder) {
         this.rowOrder = newRowOrder;
         this.columnOrder = newColumnOrder;
+        this.columnPositions = new int[newColumnOrder.length];
+        for (int i = 0; i < newColumnOrder.length; ++i) {
+            columnPositions[newColumnOrder[i]] = i;
+        }
     }
 
-    private void applySort(SortBy sortBy, List<Integer> newColumnOrder, List<Integer> newRowOrder) {
+    private void applySort(SortBy sortBy, int[] newColumnOrder, int[] newRowOrder) {
         switch (sortBy) {
         case Column:
             sortByColumn(newRowOrder);
@@ -99,33 +109,90 @@ public class OrderablePivot extends AbstractPivotForwarder {
     private void clearCurrentSortOrder() {
         this.columnOrder = null;
         this.rowOrder = null;
+        this.columnPositions = null;
     }
 
-    private void sortByRow(List<Integer> columnOrder) {
-        Collections.sort(columnOrder, new Comparator<Integer>() {
-            @Override
-            public int compare(Integer o1, Integer o2) {
-                PivotCell c1 = delegate.getCellAt(sortIndex, o1);
-                PivotCell c2 = delegate.getCellAt(sortIndex, o2);
-                return c1.compareTo(c2);
-            }
-        });
+    private void sortByRow(int[] columnOrder) {
+        SortKeys keys = new SortKeys(columnOrder.length);
+        for (int column = 0; column < columnOrder.length; ++column) {
+            keys.set(column, delegate.getCellAt(sortIndex, column));
+        }
+        IndexSort.sort(columnOrder, keys);
         if (SortMode.Descending.equals(sortMode)) {
-            Collections.reverse(columnOrder);
+            reverse(columnOrder);
         }
     }
 
-    private void sortByColumn(List<Integer> rowOrder) {
-        Collections.sort(rowOrder, new Comparator<Integer>() {
-            @Override
-            public int compare(Integer o1, Integer o2) {
-                PivotCell c1 = delegate.getCellAt(o1, sortIndex);
-                PivotCell c2 = delegate.getCellAt(o2, sortIndex);
-                return c1.compareTo(c2);
-            }
-        });
+    private void sortByColumn(int[] rowOrder) {
+        SortKeys keys = new SortKeys(rowOrder.length);
+        for (int row = 0; row < rowOrder.length; ++row) {
+            keys.set(row, delegate.getCellAt(row, sortIndex));
+        }
+        IndexSort.sort(rowOrder, keys);
         if (SortMode.Descending.equals(sortMode)) {
-            Collections.reverse(rowOrder);
+            reverse(rowOrder);
+        }
+    }
+
+    /**
+     * Values of the sorted row or column extracted once from the cells so
+     * that comparisons do not have to access or parse cells. Empty cells are
+     * ordered before non-numeric values which are ordered before numbers.
+     */
+    private static final class SortKeys implements IndexComparator {
+
+        private static final byte EMPTY = 0;
+        private static final byte TEXT = 1;
+        private static final byte NUMBER = 2;
+
+        private final double[] numbers;
+        private final byte[] types;
+        private String[] texts;
+
+        private SortKeys(int size) {
+            this.numbers = new double[size];
+            this.types = new byte[size];
+        }
+
+        private void set(int index, PivotCell cell) {
+            if (cell.isNumber()) {
+                types[index] = NUMBER;
+                numbers[index] = cell.getNumberValue();
+                return;
+            }
+            String value = cell.getValue();
+            if (null == value) {
+                types[index] = EMPTY;
+            } else {
+                if (null == texts) {
+                    texts = new String[types.length];
+                }
+                types[index] = TEXT;
+                texts[index] = value;
+            }
+        }
+
+        @Override
+        public int compare(int a, int b) {
+            if (types[a] != types[b]) {
+                return types[a] < types[b] ? -1 : 1;
+            }
+            switch (types[a]) {
+            case NUMBER:
+                return Double.compare(numbers[a], numbers[b]);
+            case TEXT:
+                return texts[a].compareTo(texts[b]);
+            default:
+                return 0;
+            }
+        }
+    }
+
+    private static void reverse(int[] order) {
+        for (int i = 0, j = order.length - 1; i < j; ++i, --j) {
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
         }
     }
 
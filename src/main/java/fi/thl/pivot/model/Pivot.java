@@ -79,6 +79,4 @@ public interface Pivot extends Iterable<PivotCell> {
     
     int getColumnNumber(int column);
 
-    void filterCellAt(int row, int column);
-
 }
@@ -1,19 +1,15 @@
 package fi.thl.pivot.model;
 
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.text.NumberFormat;
 import java.util.List;
-import java.util.Locale;
 
 public class PivotCellImpl implements PivotCell {
 
     private String value;
+    private boolean number;
+    private double numberValue;
     private int rowNumber;
     private int columnNumber;
     private DimensionNode measure;
-    private int[] key;
     private List<List<Integer>> indices;
     private long hashKey;
     private String ciLower;
@@ -22,25 +18,29 @@ public class PivotCellImpl implements PivotCell {
     private int[] fullKey;
 
     public PivotCellImpl(String value) {
+        setValue(value);
+    }
+
+    /**
+     * Creates a cell whose numeric value has already been parsed e.g. when
+     * the value was added to a {@link Dataset}
+     */
+    PivotCellImpl(String value, boolean number, double numberValue) {
         this.value = value;
+        this.number = number;
+        this.numberValue = numberValue;
     }
 
     public String getValue() {
-        if (isNumber() && null != measure) {
-            NumberFormat nf = new DecimalFormat("0.#");
-            nf.setMaximumFractionDigits(measure.getDecimals());
-            nf.setRoundingMode(RoundingMode.HALF_UP);
-            return nf.format(getNumberValue());
+        if (number && null != measure) {
+            return Numbers.format(numberValue, measure.getDecimals());
         }
         return value;
     }
 
     public String getI18nValue() {
-        if (isNumber() && null != measure) {
-            NumberFormat nf = new DecimalFormat("#,##0.#", DecimalFormatSymbols.getInstance(new Locale("fi")));
-            nf.setMaximumFractionDigits(measure.getDecimals());
-            nf.setRoundingMode(RoundingMode.HALF_UP);
-            return nf.format(getNumberValue());
+        if (number && null != measure) {
+            return Numbers.formatI18n(numberValue, measure.getDecimals());
         }
         return value;
     }
@@ -63,12 +63,15 @@ public class PivotCellImpl implements PivotCell {
 
     @Override
     public boolean isNumber() {
-        return null != value && value.matches("^-?\\d*([,.]\\d+)?$");
+        return number;
     }
 
     @Override
     public double getNumberValue() {
-        return Double.parseDouble(value.replaceAll(",", "."));
+        if (!number) {
+            throw new NumberFormatException("Not a number: " + value);
+        }
+        return numberValue;
     }
 
     public void setMeasure(DimensionNode measure) {
@@ -89,7 +92,7 @@ public class PivotCellImpl implements PivotCell {
             return 1;
         }
         if (isNumber()) {
-            return new Double(getNumberValue()).compareTo(o.getNumberValue());
+            return Double.compare(numberValue, o.getNumberValue());
         }
         if (o.isNumber()) {
             return -1;
@@ -99,21 +102,20 @@ public class PivotCellImpl implements PivotCell {
 
     public void setValue(String string) {
         value = string;
-    }
-
-    public void setKey(int[] key) {
-        this.key = key;
+        number = Numbers.isNumber(string);
+        numberValue = number ? Numbers.parse(string) : 0.0;
     }
 
     public void setFullKey(int[] fullKey) {
         this.fullKey = fullKey;;
     }
     
-    public int[] getKey() {
-        return key;
+    protected int[] getFullKey() {
+        return fullKey;
     }
 
     public int getPosition() {
+        int[] fullKey = getFullKey();
         int position = 0;
         for (int i = 0; i < fullKey.length; ++i) {
             int factor = 1;
@@ -167,8 +169,8 @@ public class PivotCellImpl implements PivotCell {
 
     @Override
     public String toString() {
-        return "PivotCellImpl [value=" + value + ", rowNumber=" + rowNumber + ", columnNumber=" + columnNumber + ", ciLower=" + ciLower + ", ciUpper=" + ciUpper
-                + ", sampleSize=" + sampleSize + "]";
+        return "PivotCellImpl [value=" + value + ", rowNumber=" + rowNumber + ", columnNumber=" + columnNumber + ", ciLower=" + getConfidenceLowerLimit() + ", ciUpper="
+                + getConfidenceUpperLimit() + ", sampleSize=" + getSampleSize() + "]";
     }
 
  
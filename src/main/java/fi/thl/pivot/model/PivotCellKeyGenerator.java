@@ -2,8 +2,6 @@ package fi.thl.pivot.model;
 
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 /**
  * This object is responsible for generating a series of keys that is used to
@@ -20,8 +18,6 @@ import java.util.TreeSet;
  */
 class PivotCellKeyGenerator {
 
-    private final Pivot pivot;
-
     /**
      * Index of the last row - not the number of rows!
      */
@@ -41,10 +37,16 @@ class PivotCellKeyGenerator {
     private final DimensionNode[] constants;
     private final DimensionNode[] dimensions;
 
+    /**
+     * Header nodes of each row and column indexed by [row][level] and
+     * [column][level]. Resolved once so that header nodes are not computed
+     * again for each cell.
+     */
+    private final DimensionNode[][] rowHeaders;
+    private final DimensionNode[][] columnHeaders;
+
     private final int[] key;
-    private final int[] fullKey;
 
-    private int[] k;
     /**
      * Represents the index of the last id that has been inserted in to key.
      * This is used to keep track of the head of the array list so that
@@ -66,8 +68,19 @@ class PivotCellKeyGenerator {
      */
     private DimensionNode measure;
 
+    /**
+     * State of the key after the row headers of the previously generated key
+     * have been added. As cells are usually accessed row by row the row part of
+     * the key is restored from here instead of being generated again.
+     */
+    private int preparedRow = -1;
+    private final int[] rowKey;
+    private final DimensionNode[] rowDimensions;
+    private int rowKeyLength;
+    private int rowDimensionLength;
+    private DimensionNode rowMeasure;
+
     public PivotCellKeyGenerator(Pivot pivot, Collection<DimensionNode> constants) {
-        this.pivot = pivot;
         this.rows = pivot.getRows().size();
         this.columns = pivot.getColumns().size();
 
@@ -78,7 +91,21 @@ class PivotCellKeyGenerator {
         this.constants = constants.toArray(new DimensionNode[constants.size()]);
         this.dimensions = new DimensionNode[total];
         this.key = new int[total];
-        this.fullKey = new int [rows + columns];
+        this.rowKey = new int[total];
+        this.rowDimensions = new DimensionNode[total];
+
+        this.rowHeaders = new DimensionNode[pivot.getRowCount()][rows];
+        for (int row = 0; row < rowHeaders.length; ++row) {
+            for (int i = 0; i < rows; ++i) {
+                rowHeaders[row][i] = pivot.getRowAt(i, row);
+            }
+        }
+        this.columnHeaders = new DimensionNode[pivot.getColumnCount()][columns];
+        for (int column = 0; column < columnHeaders.length; ++column) {
+            for (int i = 0; i < columns; ++i) {
+                columnHeaders[column][i] = pivot.getColumnAt(i, column);
+            }
+        }
     }
 
     public DimensionNode getMeasure() {
@@ -86,39 +113,54 @@ class PivotCellKeyGenerator {
     }
 
     /**
-     * Generates a hash code based on cell header nodes and filter nodes. The
-     * hash code is not perfect and may cause collision on very large data sets
+     * Generates the key of the cell in (row, column) to a buffer that is reused
+     * between calls. The key consists of the surrogate ids of the most specific
+     * header nodes of each dimension and the constants of dimensions not
+     * present in the headers. The key is available using
+     * {@link #getKeyBuffer()} until the next call to this method.
+     * 
+     * @return the number of ids in the key
      */
-    public SortedSet<Integer> createCellKey(int row, int column) {
-        clear();
-        addRows(row);
-        addColumns(column, rows);
-        k = Arrays.copyOf(key, lastKeyIndex);
+    public int createKey(int row, int column) {
+        if (row == preparedRow) {
+            restoreRow();
+        } else {
+            clear();
+            addRows(row);
+            saveRow(row);
+        }
+        addColumns(column);
         addConstants();
-        return generateSortedKey();
+        return lastKeyIndex;
     }
 
-    private SortedSet<Integer> generateSortedKey() {
-        SortedSet<Integer> sortedKey = new TreeSet<>();
-        for (int i = 0; i < lastKeyIndex; ++i) {
-            sortedKey.add(key[i]);
-        }
-        return sortedKey;
+    /**
+     * Returns the buffer that holds the key generated by the latest call to
+     * {@link #createKey(int, int)}. Only the first n ids are valid where n is
+     * the value returned by {@link #createKey(int, int)}. The buffer may be
+     * reordered by the caller.
+     */
+    public int[] getKeyBuffer() {
+        return key;
     }
 
     /**
-     * Returns the part of the cell key that descibes the row and column nodes
-     * used to describe the cell. This is required if pivot cell is to be used
-     * in a situation where the dataset is described as a sparse matrixs
-     * 
-     * @return
+     * Returns the surrogate ids of all row and column header nodes of the cell
+     * in (row, column) ordered by header level. Unlike
+     * {@link #createKey(int, int)} this method does not modify the state of
+     * the generator and may be called concurrently.
      */
-    public int[] getKey() {
-        return k;
-    }
-    
-    public int[] getFullKey() {
-        return Arrays.copyOf(fullKey, fullKey.length);
+    public int[] createFullKey(int row, int column) {
+        int[] fullKey = new int[rows + columns];
+        DimensionNode[] rowNodes = rowHeaders[row];
+        for (int i = 0; i < rows; ++i) {
+            fullKey[i] = rowNodes[i].getSurrogateId();
+        }
+        DimensionNode[] columnNodes = columnHeaders[column];
+        for (int i = 0; i < columns; ++i) {
+            fullKey[rows + i] = columnNodes[i].getSurrogateId();
+        }
+        return fullKey;
     }
 
     /**
@@ -127,21 +169,41 @@ class PivotCellKeyGenerator {
      * @param row
      */
     private void addRows(int row) {
+        DimensionNode[] headers = rowHeaders[row];
         for (int i = 0; i < rows; ++i) {
-            DimensionNode node = pivot.getRowAt(i, row);
-            addNode(node, i);
+            addNode(headers[i]);
         }
     }
 
+    private void saveRow(int row) {
+        preparedRow = row;
+        rowKeyLength = lastKeyIndex;
+        rowDimensionLength = lastDimensionIndex;
+        rowMeasure = measure;
+        System.arraycopy(key, 0, rowKey, 0, lastKeyIndex);
+        System.arraycopy(dimensions, 0, rowDimensions, 0, lastDimensionIndex);
+    }
+
+    /**
+     * Restores the key to the state it was after the row headers were added
+     */
+    private void restoreRow() {
+        lastKeyIndex = rowKeyLength;
+        lastDimensionIndex = rowDimensionLength;
+        measure = rowMeasure;
+        System.arraycopy(rowKey, 0, key, 0, rowKeyLength);
+        System.arraycopy(rowDimensions, 0, dimensions, 0, rowDimensionLength);
+    }
+
     /**
      * Iterates over each column header level and adds the node to the cell key
      * 
      * @param row
      */
-    private void addColumns(int column, int offset) {
+    private void addColumns(int column) {
+        DimensionNode[] headers = columnHeaders[column];
         for (int i = 0; i < columns; ++i) {
-            DimensionNode node = pivot.getColumnAt(i, column);
-            addNode(node, i + offset);
+            addNode(headers[i]);
         }
     }
 
@@ -152,10 +214,9 @@ class PivotCellKeyGenerator {
      * 
      * @param node
      */
-    private void addNode(final DimensionNode node, int position) {
+    private void addNode(final DimensionNode node) {
         final int id = node.getSurrogateId();
         final int oldNodeIndex = putDimIfAbsent(node);
-        fullKey[position] = node.getSurrogateId();
         if (oldNodeIndex >= 0) {
             final DimensionNode oldNode = dimensions[oldNodeIndex];
             if (node.ancestorOf(oldNode)) {
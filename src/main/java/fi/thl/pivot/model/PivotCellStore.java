@@ -0,0 +1,142 @@
+package fi.thl.pivot.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Dense storage for the resolved cells of a {@link ModifiablePivot}. Instead of
+ * cell objects the store keeps for each cell the position of its value in the
+ * {@link Dataset}, the positions of related confidence interval and sample
+ * size values and the measure of the cell as an index to a table of measures
+ * maintained by the pivot.
+ *
+ * Storage is allocated in blocks of rows when the first cell of the block is
+ * stored. Confidence interval and sample size arrays are allocated only for
+ * blocks that contain such values.
+ *
+ */
+class PivotCellStore {
+
+    /**
+     * Marks a missing value or a cell without a measure
+     */
+    static final int NOT_FOUND = -1;
+
+    static final int BLOCK_ROWS = 64;
+
+    private final int rowCount;
+    private final int columnCount;
+    private final Block[] blocks;
+
+    private static final class Block {
+        private final BitSet resolved;
+        private final int[] values;
+        private final int[] measures;
+        private int[] lowerLimits;
+        private int[] upperLimits;
+        private int[] sampleSizes;
+
+        private Block(int size) {
+            this.resolved = new BitSet(size);
+            this.values = new int[size];
+            this.measures = new int[size];
+        }
+    }
+
+    PivotCellStore(int rowCount, int columnCount) {
+        this.rowCount = rowCount;
+        this.columnCount = columnCount;
+        this.blocks = new Block[(rowCount + BLOCK_ROWS - 1) / BLOCK_ROWS];
+    }
+
+    boolean isResolved(int row, int column) {
+        Block block = blocks[row / BLOCK_ROWS];
+        return null != block && block.resolved.get(offset(row, column));
+    }
+
+    /**
+     * Stores the value position and measure index of a cell and marks the cell
+     * resolved
+     */
+    void set(int row, int column, int value, int measure) {
+        Block block = block(row);
+        int offset = offset(row, column);
+        block.values[offset] = value;
+        block.measures[offset] = measure;
+        block.resolved.set(offset);
+    }
+
+    void setConfidenceInterval(int row, int column, int lowerLimit, int upperLimit) {
+        Block block = block(row);
+        if (null == block.lowerLimits) {
+            block.lowerLimits = emptyArray(block.values.length);
+            block.upperLimits = emptyArray(block.values.length);
+        }
+        int offset = offset(row, column);
+        block.lowerLimits[offset] = lowerLimit;
+        block.upperLimits[offset] = upperLimit;
+    }
+
+    void setSampleSize(int row, int column, int sampleSize) {
+        Block block = block(row);
+        if (null == block.sampleSizes) {
+            block.sampleSizes = emptyArray(block.values.length);
+        }
+        block.sampleSizes[offset(row, column)] = sampleSize;
+    }
+
+    /**
+     * Marks the cell unresolved so that it is resolved again when accessed
+     */
+    void clear(int row, int column) {
+        Block block = blocks[row / BLOCK_ROWS];
+        if (null != block) {
+            block.resolved.clear(offset(row, column));
+        }
+    }
+
+    int getValue(int row, int column) {
+        return blocks[row / BLOCK_ROWS].values[offset(row, column)];
+    }
+
+    int getMeasure(int row, int column) {
+        return blocks[row / BLOCK_ROWS].measures[offset(row, column)];
+    }
+
+    int getConfidenceLowerLimit(int row, int column) {
+        return get(blocks[row / BLOCK_ROWS].lowerLimits, row, column);
+    }
+
+    int getConfidenceUpperLimit(int row, int column) {
+        return get(blocks[row / BLOCK_ROWS].upperLimits, row, column);
+    }
+
+    int getSampleSize(int row, int column) {
+        return get(blocks[row / BLOCK_ROWS].sampleSizes, row, column);
+    }
+
+    private int get(int[] array, int row, int column) {
+        return null == array ? NOT_FOUND : array[offset(row, column)];
+    }
+
+    private Block block(int row) {
+        int index = row / BLOCK_ROWS;
+        Block block = blocks[index];
+        if (null == block) {
+            int rowsInBlock = Math.min(BLOCK_ROWS, rowCount - index * BLOCK_ROWS);
+            block = new Block(rowsInBlock * columnCount);
+            blocks[index] = block;
+        }
+        return block;
+    }
+
+    private int offset(int row, int column) {
+        return (row % BLOCK_ROWS) * columnCount + column;
+    }
+
+    private static int[] emptyArray(int size) {
+        int[] array = new int[size];
+        Arrays.fill(array, NOT_FOUND);
+        return array;
+    }
+}
@@ -0,0 +1,46 @@
+package fi.thl.pivot.model;
+
+/**
+ * Flyweight cell created on demand from the cell store of a
+ * {@link ModifiablePivot}. Only the value and the measure of the cell are
+ * resolved when the cell is created. Confidence intervals, sample size and
+ * the key of the cell are looked up from the pivot when requested.
+ *
+ */
+class StoredPivotCell extends PivotCellImpl {
+
+    private final ModifiablePivot pivot;
+    private int[] fullKey;
+
+    StoredPivotCell(ModifiablePivot pivot, String value, boolean number, double numberValue, DimensionNode measure, int row, int column) {
+        super(value, number, numberValue);
+        this.pivot = pivot;
+        setMeasure(measure);
+        setRowNumber(row);
+        setColumnNumber(column);
+    }
+
+    @Override
+    public String getConfidenceLowerLimit() {
+        return pivot.getConfidenceLowerLimitAt(getRowNumber(), getColumnNumber());
+    }
+
+    @Override
+    public String getConfidenceUpperLimit() {
+        return pivot.getConfidenceUpperLimitAt(getRowNumber(), getColumnNumber());
+    }
+
+    @Override
+    public String getSampleSize() {
+        return pivot.getSampleSizeAt(getRowNumber(), getColumnNumber());
+    }
+
+    @Override
+    protected int[] getFullKey() {
+        if (null == fullKey) {
+            fullKey = pivot.getFullKeyAt(getRowNumber(), getColumnNumber());
+        }
+        return fullKey;
+    }
+
+}
@@ -0,0 +1,92 @@
+package fi.thl.pivot.util;
+
+/**
+ * Stable merge sort for arrays of primitive indices. Used when rows of
+ * column-oriented data must be ordered without boxing each row into an
+ * object.
+ *
+ */
+public class IndexSort {
+
+    /**
+     * Compares two indices by the data they refer to
+     */
+    public interface IndexComparator {
+        int compare(int a, int b);
+    }
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private IndexSort() {
+    };
+
+    /**
+     * Returns an array containing indices 0, 1, ..., size - 1
+     */
+    public static int[] identity(int size) {
+        int[] indices = new int[size];
+        for (int i = 0; i < size; ++i) {
+            indices[i] = i;
+        }
+        return indices;
+    }
+
+    /**
+     * Sorts the indices in ascending order as defined by the comparator.
+     * Indices that compare equal retain their relative order.
+     */
+    public static void sort(int[] indices, IndexComparator comparator) {
+        sort(indices, 0, indices.length, comparator);
+    }
+
+    public static void sort(int[] indices, int from, int to, IndexComparator comparator) {
+        if (to - from < 2) {
+            return;
+        }
+        int[] buffer = new int[to - from];
+        mergeSort(indices, buffer, from, to, comparator);
+    }
+
+    private static void mergeSort(int[] indices, int[] buffer, int from, int to, IndexComparator comparator) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            insertionSort(indices, from, to, comparator);
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(indices, buffer, from, middle, comparator);
+        mergeSort(indices, buffer, middle, to, comparator);
+
+        // Already in order, no need to merge
+        if (comparator.compare(indices[middle - 1], indices[middle]) <= 0) {
+            return;
+        }
+
+        int length = middle - from;
+        System.arraycopy(indices, from, buffer, 0, length);
+        int left = 0;
+        int right = middle;
+        int target = from;
+        while (left < length && right < to) {
+            if (comparator.compare(indices[right], buffer[left]) < 0) {
+                indices[target++] = indices[right++];
+            } else {
+                indices[target++] = buffer[left++];
+            }
+        }
+        while (left < length) {
+            indices[target++] = buffer[left++];
+        }
+    }
+
+    private static void insertionSort(int[] indices, int from, int to, IndexComparator comparator) {
+        for (int i = from + 1; i < to; ++i) {
+            int index = indices[i];
+            int j = i - 1;
+            while (j >= from && comparator.compare(indices[j], index) > 0) {
+                indices[j + 1] = indices[j];
+                --j;
+            }
+            indices[j + 1] = index;
+        }
+    }
+}
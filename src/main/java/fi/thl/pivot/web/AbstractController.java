@@ -1,16 +1,23 @@
 package fi.thl.pivot.web;
 
+import java.util.concurrent.TimeUnit;
+
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.view.freemarker.FreeMarkerConfig;
 
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
 import fi.thl.pivot.datasource.AmorDao;
+import fi.thl.pivot.datasource.DatasetCache;
 import fi.thl.pivot.datasource.HydraSource;
 import fi.thl.pivot.datasource.LogSource;
 import fi.thl.pivot.exception.CubeAccessDeniedException;
@@ -32,6 +39,9 @@ public abstract class AbstractController {
     @Autowired
     protected AmorDao amorDao;
 
+    @Autowired
+    protected DatasetCache datasetCache;
+
     @Autowired
     protected FreeMarkerConfig freemarker;
 
@@ -44,6 +54,12 @@ public abstract class AbstractController {
     @Autowired
     protected LogSource logSource;
 
+    /**
+     * How long a request waits for metadata loaded by another request
+     */
+    @Value("${metadata.load.timeout.seconds:120}")
+    private long metadataLoadTimeout;
+
     /**
      * Provides a friendly error messages when content is not found
      * 
@@ -198,13 +214,34 @@ public abstract class AbstractController {
         }
     }
 
+    /**
+     * Loads the metadata of the source unless it is already loaded. Concurrent
+     * requests for the same source wait for a single load instead of each
+     * querying the database.
+     * 
+     * @param source
+     */
     protected void loadMetadata(HydraSource source) {
         if (!source.isMetadataLoaded()) {
-            source.loadMetadata();
+            source.loadMetadata(metadataLoadTimeout, TimeUnit.SECONDS);
+            amorDao.metadataLoaded(source);
         }
         LOG.debug("metadata loaded");
     }
 
+    /**
+     * Returns a key that identifies the role of the user in a password
+     * protected cube or null if the cube is open. The password itself is not
+     * revealed by the key.
+     */
+    protected String getRoleKey(AbstractRequest request, HydraSource source) {
+        if (!source.isProtected()) {
+            return null;
+        }
+        Object pwdAttribute = session.getAttribute(sessionAttributeName(request.getEnv(), request.getCube()));
+        return null == pwdAttribute ? null : Hashing.sha256().hashString((String) pwdAttribute, Charsets.UTF_8).toString();
+    }
+
     private String sessionAttributeName(String env, String cube) {
         return env + "/" + cube;
     }
@@ -1,16 +1,20 @@
 package fi.thl.pivot.web;
 
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestParam;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 
 import fi.thl.pivot.annotation.Monitored;
+import fi.thl.pivot.datasource.HydraSource;
 import fi.thl.pivot.web.tools.FindNodes;
 
 /**
@@ -26,6 +30,12 @@ public abstract class AbstractCubeController extends AbstractController {
     private static final String FACT_PREFIX = "fact_";
     private static final Logger LOG = Logger.getLogger(AbstractCubeController.class);
 
+    @Autowired
+    protected ResponseCache responseCache;
+
+    @Autowired
+    protected ForkJoinPool filterPool;
+
     /*
      * Handles common parameters and creates a POJO out of them so that handling
      * parameters in done in DRYer way.
@@ -81,11 +91,18 @@ public abstract class AbstractCubeController extends AbstractController {
 
     @Monitored
     protected CubeService createCube(String env, String cube, CubeRequest cubeRequest, FindNodes.SearchType searchType, Model model) {
+        return createCube(amorDao.loadSource(env, cube), cubeRequest, searchType, model);
+    }
+
+    @Monitored
+    protected CubeService createCube(HydraSource source, CubeRequest cubeRequest, FindNodes.SearchType searchType, Model model) {
 
         Preconditions.checkNotNull(cubeRequest.getRowHeaders());
         Preconditions.checkNotNull(cubeRequest.getColumnHeaders());
 
-        CubeService service = new CubeService(amorDao.loadSource(env, cube), cubeRequest);
+        CubeService service = new CubeService(source, cubeRequest);
+        service.setDatasetCache(datasetCache);
+        service.setFilterPool(filterPool);
 
         service.setLocale(cubeRequest.getLocale());
 
@@ -106,7 +123,7 @@ public abstract class AbstractCubeController extends AbstractController {
         LOG.debug("Creating cube");
 
         if (null != service.getSource()) {
-            LOG.debug("Found cube " + cube);
+            LOG.debug("Found cube " + cubeRequest.getCube());
             loadMetadata(service.getSource());
             checkLoginRequirements(cubeRequest, model, service.getSource());
             service.createCube();
@@ -116,6 +133,36 @@ public abstract class AbstractCubeController extends AbstractController {
         return service;
     }
 
+    /**
+     * Checks that the user may access the cube and returns the key of the
+     * rendered response in the given format. The key identifies the run of
+     * the cube, all parameters of the request and the role of the user.
+     * Returns null if the response must not be cached.
+     */
+    protected String createResponseKey(HydraSource source, CubeRequest cubeRequest, String format, Model model) {
+        if (null == source) {
+            return null;
+        }
+        loadMetadata(source);
+        checkLoginRequirements(cubeRequest, model, source);
+        if (null == source.getRunid()) {
+            return null;
+        }
+        String role = getRoleKey(cubeRequest, source);
+        if (source.isProtected() && null == role) {
+            return null;
+        }
+        return Joiner.on('/').useForNull("-").join(source.getRunid(), cubeRequest.getEnv(), source.getId(), format, role, cubeRequest.toCacheKey());
+    }
+
+    /**
+     * Logs a display event of a response served from the response cache
+     */
+    protected void logCachedDisplayEvent(CubeRequest cubeRequest, String view) {
+        logSource.logDisplayEvent(cubeRequest.getCube(), cubeRequest.getEnv(), view, null != cubeRequest.getFilterZeroes(),
+                null != cubeRequest.getFilterEmptyValues());
+    }
+
     protected boolean parseSortTarget(String sortNode) {
         return null != sortNode && sortNode.startsWith("c");
     }
@@ -1,18 +1,26 @@
 package fi.thl.pivot.web;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.List;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 
 import fi.thl.pivot.annotation.Monitored;
 import fi.thl.pivot.datasource.HydraSource;
+import fi.thl.pivot.model.DimensionNode;
 import fi.thl.pivot.export.JsonStatExporter;
 
 /**
@@ -26,6 +34,7 @@ import fi.thl.pivot.export.JsonStatExporter;
 public class CubeApiController extends AbstractCubeController {
 
     private static final Logger LOG = Logger.getLogger(CubeApiController.class);
+    private static final int MAX_SEARCH_RESULTS = 100;
 
     @RequestMapping(value = "/fact_{cube}.js", produces = "text/javascript")
     public String displayCubeAsJsonStatP(@ModelAttribute CubeRequest cubeRequest, Model model, HttpServletResponse resp) {
@@ -48,20 +57,29 @@ public class CubeApiController extends AbstractCubeController {
 
     @Monitored
     @RequestMapping(value = "/fact_{cube}.json", produces = "text/javascript")
-    public void displayCubeAsJsonStat(@ModelAttribute CubeRequest cubeRequest, Model model, HttpServletResponse resp, OutputStream out) throws IOException {
+    public void displayCubeAsJsonStat(@ModelAttribute CubeRequest cubeRequest, Model model, HttpServletRequest req, HttpServletResponse resp) throws IOException {
         LOG.debug(String.format("ACCESS JSON-STAT cube requested %s %s %s", cubeRequest.getEnv(), cubeRequest.getCube(), cubeRequest.toString()));
 
         try {
-            CubeService cs = createCube(cubeRequest.getEnv(), cubeRequest.getCube(), cubeRequest, resolveSearchType(cubeRequest.getSearchType()), model);
+            HydraSource source = amorDao.loadSource(cubeRequest.getEnv(), cubeRequest.getCube());
+            String key = createResponseKey(source, cubeRequest, "json", model);
+            ResponseCache.Entry cached = responseCache.get(key);
+            if (null != cached) {
+                logCachedDisplayEvent(cubeRequest, "json");
+                responseCache.write(cached, req, resp);
+                return;
+            }
+
+            CubeService cs = createCube(source, cubeRequest, resolveSearchType(cubeRequest.getSearchType()), model);
 
             if (cs.isCubeCreated()) {
                 logSource.logDisplayEvent(cubeRequest.getCube(), cubeRequest.getEnv(), cs, "json");
                 model.addAttribute("jsonp", false);
                 model.addAttribute("surrogate", "su".equals(cubeRequest.getSearchType()));
                 // return "cube.jsonstat";
-                resp.setContentType("application/json");
-                resp.setCharacterEncoding("utf-8");
-                new JsonStatExporter().export(model, out);
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                new JsonStatExporter().export(model, body);
+                responseCache.write(responseCache.put(key, "application/json;charset=utf-8", body.toByteArray()), req, resp);
             } else {
                 resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             }
@@ -90,4 +108,37 @@ public class CubeApiController extends AbstractCubeController {
         }
     }
 
+    /**
+     * Searches nodes of the cube by label so that selectors do not have to
+     * load every option up front. Returns the surrogate id, id, label and
+     * dimension of each matching node.
+     */
+    @Monitored
+    @RequestMapping(value = "/fact_{cube}.search.json", produces = "application/json;charset=UTF-8")
+    public ResponseEntity<String> searchNodesAsJson(@ModelAttribute CubeRequest cubeRequest, Model model, @RequestParam("q") String query,
+            @RequestParam(value = "dim", required = false) String dimension,
+            @RequestParam(value = "limit", required = false, defaultValue = "20") int limit) {
+        LOG.debug(String.format("ACCESS Cube search requested %s %s", cubeRequest.getEnv(), cubeRequest.getCube()));
+
+        HydraSource source = amorDao.loadSource(cubeRequest.getEnv(), cubeRequest.getCube());
+        if (null == source) {
+            return new ResponseEntity<>("{\"error\":\"Not found\"}", HttpStatus.NOT_FOUND);
+        }
+        loadMetadata(source);
+        checkLoginRequirements(cubeRequest, model, source);
+
+        String language = source.resolveLanguage(cubeRequest.getLocale().getLanguage());
+        List<DimensionNode> nodes = source.searchNodes(query, language, dimension, Math.min(limit, MAX_SEARCH_RESULTS));
+        JSONArray result = new JSONArray();
+        for (DimensionNode node : nodes) {
+            JSONObject n = new JSONObject();
+            n.put("sid", node.getSurrogateId());
+            n.put("id", node.getId());
+            n.put("label", node.getLabel().getValue(language));
+            n.put("dimension", node.getDimension().getId());
+            result.put(n);
+        }
+        return new ResponseEntity<>(result.toString(), HttpStatus.OK);
+    }
+
 }
@@ -1,7 +1,9 @@
 package fi.thl.pivot.web;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
@@ -11,6 +13,7 @@ import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.RequestMapping;
 
 import fi.thl.pivot.annotation.Monitored;
+import fi.thl.pivot.datasource.HydraSource;
 import fi.thl.pivot.exception.CubeNotFoundException;
 import fi.thl.pivot.export.CsvExporter;
 
@@ -21,10 +24,19 @@ public class CubeCsvController extends AbstractCubeController {
 
     @Monitored
     @RequestMapping(value = "/{env}/{locale}/{subject}/{hydra}/fact_{cube}.csv", produces = "text/csv;charset=UTF-8")
-    public void displayCubeAsCSV(@ModelAttribute CubeRequest cubeRequest, Model model, HttpServletResponse resp) throws IOException {
+    public void displayCubeAsCSV(@ModelAttribute CubeRequest cubeRequest, Model model, HttpServletRequest req, HttpServletResponse resp) throws IOException {
         LOG.debug(String.format("ACCESS CSV cube requested %s %s %s ", cubeRequest.getEnv(), cubeRequest.getCube(), cubeRequest.toString()));
 
-        CubeService cs = createCube(cubeRequest.getEnv(), cubeRequest.getCube(), cubeRequest, resolveSearchType(cubeRequest.getSearchType()), model);
+        HydraSource source = amorDao.loadSource(cubeRequest.getEnv(), cubeRequest.getCube());
+        String key = createResponseKey(source, cubeRequest, "csv", model);
+        ResponseCache.Entry cached = responseCache.get(key);
+        if (null != cached) {
+            logCachedDisplayEvent(cubeRequest, "csv");
+            responseCache.write(cached, req, resp);
+            return;
+        }
+
+        CubeService cs = createCube(source, cubeRequest, resolveSearchType(cubeRequest.getSearchType()), model);
         if (cs.isCubeCreated()) {
             logSource.logDisplayEvent(cubeRequest.getCube(), cubeRequest.getEnv(), cs, "csv");
 
@@ -34,7 +46,9 @@ public class CubeCsvController extends AbstractCubeController {
             model.addAttribute("updated", cs.getSource().getRunDate());
             model.addAttribute("isOpenData", cs.getSource().isOpenData());
 
-            new CsvExporter().export(model, resp.getOutputStream());
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            new CsvExporter().export(model, body);
+            responseCache.write(responseCache.put(key, "text/csv;charset=UTF-8", body.toByteArray()), req, resp);
 
         } else {
             throw new CubeNotFoundException();
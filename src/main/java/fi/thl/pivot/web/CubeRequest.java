@@ -2,6 +2,8 @@ package fi.thl.pivot.web;
 
 import java.util.List;
 
+import com.google.common.collect.Ordering;
+
 /**
  * Represent common parameters that are passed to different cube requests
  * 
@@ -217,4 +219,24 @@ public class CubeRequest extends AbstractRequest {
         return sb.toString();
     }
 
+    /**
+     * Returns a canonical representation of all parameters that affect the
+     * contents of the cube. Filter and measure selections are order
+     * independent.
+     */
+    public String toCacheKey() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("row=").append(rowHeaders);
+        sb.append("&column=").append(columnHeaders);
+        sb.append("&filter=").append(Ordering.natural().sortedCopy(filterValues));
+        sb.append("&measure=").append(Ordering.natural().sortedCopy(measureValues));
+        sb.append("&search=").append(searchType);
+        sb.append("&sort=").append(sortNode).append("&mode=").append(sortMode);
+        sb.append("&sc=").append(showCodes);
+        sb.append("&fo=").append(null != fo).append("&fz=").append(null != fz);
+        sb.append("&ci=").append(null != ci).append("&n=").append(null != n);
+        sb.append("&locale=").append(locale.getLanguage());
+        return sb.toString();
+    }
+
 }
@@ -3,6 +3,8 @@ package fi.thl.pivot.web;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.log4j.Logger;
 import org.springframework.ui.Model;
@@ -10,9 +12,14 @@ import org.springframework.util.StopWatch;
 
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Ordering;
 
+import fi.thl.pivot.datasource.DatasetCache;
+import fi.thl.pivot.datasource.DatasetCache.KeyBuilder;
 import fi.thl.pivot.datasource.HydraSource;
 import fi.thl.pivot.model.Dataset;
 import fi.thl.pivot.model.Dimension;
@@ -83,11 +90,33 @@ public class CubeService {
 
     private CubeRequest request;
 
+    private DatasetCache datasetCache;
+
+    private ForkJoinPool filterPool;
+
     public CubeService(HydraSource source, CubeRequest cr) {
         this.source = source;
         this.request = cr;
     }
 
+    /**
+     * Sets the cache used to share loaded datasets between requests. If no
+     * cache is set data is loaded from the source for each request.
+     */
+    public void setDatasetCache(DatasetCache datasetCache) {
+        this.datasetCache = datasetCache;
+    }
+
+    /**
+     * Sets the pool used to filter large tables in parallel. The pool should
+     * be shared by all requests so that concurrent requests do not use more
+     * threads than there are processors. If no pool is set tables are
+     * filtered in the calling thread.
+     */
+    public void setFilterPool(ForkJoinPool filterPool) {
+        this.filterPool = filterPool;
+    }
+
     public void createCube() {
         StopWatch sw = new StopWatch();
 
@@ -105,19 +134,32 @@ public class CubeService {
         final List<DimensionNode> filter = new FilterBuilder(source, headerNodes, filterNodes).asFilter();
         sw.stop();
 
-        sw.start("Load data");
-        Dataset dataSet = source.loadSubset(query, filter, null != request.getCi() || null != request.getN());
-        sw.stop();
+        final boolean showValueTypes = null != request.getCi() || null != request.getN();
+        ModifiablePivot mPivot;
+        if (source.isCellPushDownSupported()) {
+            // The pivot is defined first so that only the facts of its
+            // cells are loaded
+            sw.start("Create pivot");
+            mPivot = createPivot(new Dataset(), filter);
+            sw.stop();
 
-        LOG.debug("data loaded");
+            sw.start("Load data");
+            mPivot.setDataset(loadCells(mPivot, filter, showValueTypes));
+            sw.stop();
+        } else {
+            sw.start("Load data");
+            Dataset dataSet = loadSubset(filter, showValueTypes);
+            sw.stop();
 
-        sw.start("Create pivot");
-        ModifiablePivot mPivot = new ModifiablePivot(dataSet);
-        if (this.defaultMeasureUsed) {
-            mPivot.setDefaultMeasure(defaultMeasure);
+            sw.start("Create pivot");
+            mPivot = createPivot(dataSet, filter);
+            sw.stop();
         }
-        mPivot.setFilterNodes(filterNodes);
-        determineDimensions(mPivot, filter);
+
+        LOG.debug("data loaded");
+
+        sw.start("Materialize cells");
+        mPivot.materialize();
         sw.stop();
 
         sw.start("apply filters");
@@ -342,6 +384,59 @@ public class CubeService {
         return false;
     }
 
+    private Dataset loadSubset(final List<DimensionNode> filter, final boolean showValueTypes) {
+        Callable<Dataset> loader = new Callable<Dataset>() {
+            @Override
+            public Dataset call() {
+                return source.loadSubset(query, filter, showValueTypes);
+            }
+        };
+        if (null == datasetCache || !DatasetCache.isCacheable(source)) {
+            return call(loader);
+        }
+        // The key must be determined before the subset is loaded as loading
+        // removes filtered nodes from the query
+        KeyBuilder key = DatasetCache.key(source, "subset").add("vt", showValueTypes).addNodes("f", filter);
+        Multimap<String, DimensionNode> nodes = query.getNodesPerDimension();
+        for (String dimension : Ordering.natural().sortedCopy(nodes.keySet())) {
+            key.addNodes("d:" + dimension, nodes.get(dimension));
+        }
+        return datasetCache.get(key.build(), loader);
+    }
+
+    private Dataset loadCells(final ModifiablePivot mPivot, final List<DimensionNode> filter, final boolean showValueTypes) {
+        Callable<Dataset> loader = new Callable<Dataset>() {
+            @Override
+            public Dataset call() {
+                return source.loadCells(mPivot, showValueTypes);
+            }
+        };
+        if (null == datasetCache || !DatasetCache.isCacheable(source)) {
+            return call(loader);
+        }
+        KeyBuilder key = DatasetCache.key(source, "cells").add("vt", showValueTypes).addNodes("f", filter)
+                .addLevels("r", mPivot.getRows()).addLevels("c", mPivot.getColumns());
+        return datasetCache.get(key.build(), loader);
+    }
+
+    private static Dataset call(Callable<Dataset> loader) {
+        try {
+            return loader.call();
+        } catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private ModifiablePivot createPivot(Dataset dataSet, final List<DimensionNode> filter) {
+        ModifiablePivot mPivot = new ModifiablePivot(dataSet);
+        if (this.defaultMeasureUsed) {
+            mPivot.setDefaultMeasure(defaultMeasure);
+        }
+        mPivot.setFilterNodes(filterNodes);
+        determineDimensions(mPivot, filter);
+        return mPivot;
+    }
+
     private void determineDimensions(ModifiablePivot mPivot, final List<DimensionNode> filter) {
         int i = 0;
         for (PivotLevel column : query.getColumns()) {
@@ -399,7 +494,9 @@ public class CubeService {
         }
 
         fPivot.filterHiearachy();
-        fPivot.applyFilters(filters);
+        // Cells have been materialized so the filters may be applied in
+        // parallel
+        fPivot.applyFilters(filters, filterPool);
 
     }
 
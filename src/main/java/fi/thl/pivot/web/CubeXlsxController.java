@@ -1,7 +1,9 @@
 package fi.thl.pivot.web;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
@@ -13,6 +15,7 @@ import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.RequestMapping;
 
 import fi.thl.pivot.annotation.Monitored;
+import fi.thl.pivot.datasource.HydraSource;
 import fi.thl.pivot.exception.CubeNotFoundException;
 import fi.thl.pivot.export.XlsxExporter;
 
@@ -21,27 +24,40 @@ public class CubeXlsxController extends AbstractCubeController {
 
     private static final Logger LOG = Logger.getLogger(CubeXlsxController.class);
 
+    private static final String XLSX_CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+
     @Autowired
     private MessageSource messageSource;
 
     @Monitored
-    @RequestMapping(value = "/{env}/{locale}/{subject}/{hydra}/fact_{cube}.xlsx", produces = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet")
-    public void displayCubeAsXLSX(@ModelAttribute CubeRequest cubeRequest, Model model, HttpServletResponse resp) throws CubeNotFoundException, IOException {
+    @RequestMapping(value = "/{env}/{locale}/{subject}/{hydra}/fact_{cube}.xlsx", produces = XLSX_CONTENT_TYPE)
+    public void displayCubeAsXLSX(@ModelAttribute CubeRequest cubeRequest, Model model, HttpServletRequest req, HttpServletResponse resp) throws CubeNotFoundException, IOException {
         LOG.debug(String.format("XLSX cube requested %s %s %s", cubeRequest.getEnv(), cubeRequest.getCube(), cubeRequest.toString()));
 
         if(cubeRequest.getRowHeaders().isEmpty() || cubeRequest.getColumnHeaders().isEmpty()) {
             throw new RuntimeException("Invalid selection");
         }
-        CubeService cs = createCube(cubeRequest.getEnv(), cubeRequest.getCube(), cubeRequest, resolveSearchType(cubeRequest.getSearchType()), model);
+        HydraSource source = amorDao.loadSource(cubeRequest.getEnv(), cubeRequest.getCube());
+        String key = createResponseKey(source, cubeRequest, "xlsx", model);
+        ResponseCache.Entry cached = responseCache.get(key);
+        if (null != cached) {
+            logCachedDisplayEvent(cubeRequest, "xlsx");
+            resp.setHeader("Content-disposition", "attachment; filename=" + cubeRequest.getCube() + ".xlsx");
+            responseCache.write(cached, req, resp);
+            return;
+        }
+
+        CubeService cs = createCube(source, cubeRequest, resolveSearchType(cubeRequest.getSearchType()), model);
         if (cs.isCubeCreated()) {
             logSource.logDisplayEvent(cubeRequest.getCube(), cubeRequest.getEnv(), cs, "xlsx");
-            resp.setContentType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
             resp.setHeader("Content-disposition", "attachment; filename=" + cubeRequest.getCube() + ".xlsx");
             model.addAttribute("cube", cubeRequest.getCube());
             model.addAttribute("updated", cs.getSource().getRunDate());
             model.addAttribute("isOpenData", cs.getSource().isOpenData());
 
-            new XlsxExporter(cubeRequest.getUiLanguage(), messageSource).export(model, resp.getOutputStream());
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            new XlsxExporter(cubeRequest.getUiLanguage(), messageSource).export(model, body);
+            responseCache.write(responseCache.put(key, XLSX_CONTENT_TYPE, body.toByteArray()), req, resp);
         } else {
             throw new CubeNotFoundException();
         }
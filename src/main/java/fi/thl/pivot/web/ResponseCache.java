@@ -0,0 +1,150 @@
+package fi.thl.pivot.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Cache of rendered cube responses. Responses are stored gzip compressed
+ * together with an entity tag so that repeated requests for the same cube and
+ * parameters are answered without building the pivot again and conditional
+ * requests are answered with 304 Not Modified.
+ *
+ * Keys must identify the run of the cube so that cached responses never have
+ * to be invalidated because of new data, and the role of the user so that
+ * responses of password protected cubes are not shared between roles.
+ *
+ */
+@Component
+public class ResponseCache {
+
+    public static final class Entry {
+        private final String contentType;
+        private final String eTag;
+        private final byte[] body;
+
+        private Entry(String contentType, String eTag, byte[] body) {
+            this.contentType = contentType;
+            this.eTag = eTag;
+            this.body = body;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * The compressed body is a different representation and so has its
+         * own entity tag
+         */
+        public String getGzipETag() {
+            return eTag.substring(0, eTag.length() - 1) + GZIP_SUFFIX + "\"";
+        }
+    }
+
+    private static final String GZIP_SUFFIX = "-gzip";
+
+    private final Cache<String, Entry> cache;
+
+    @Autowired
+    public ResponseCache(@Value("${cache.response.bytes:67108864}") long maximumBytes) {
+        this.cache = CacheBuilder.newBuilder().maximumWeight(maximumBytes).weigher(new Weigher<String, Entry>() {
+            @Override
+            public int weigh(String key, Entry value) {
+                return value.body.length + key.length() * 2;
+            }
+        }).build();
+    }
+
+    /**
+     * Returns the cached response or null if the key is null or no response
+     * is cached with the key
+     */
+    public Entry get(String key) {
+        return null == key ? null : cache.getIfPresent(key);
+    }
+
+    /**
+     * Compresses and caches the response body. If key is null the response is
+     * not cached but an entry is still returned so that it can be written to
+     * the client.
+     */
+    public Entry put(String key, String contentType, byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(body);
+        }
+        Entry entry = new Entry(contentType, "\"" + Hashing.md5().hashBytes(body).toString() + "\"", compressed.toByteArray());
+        if (null != key) {
+            cache.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Writes the entry to the client. Answers with 304 if the client already
+     * has the entry in the selected encoding and sends the compressed body as
+     * is if the client accepts gzip encoding.
+     */
+    public void write(Entry entry, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        boolean gzip = acceptsGzip(req.getHeader("Accept-Encoding"));
+        String eTag = gzip ? entry.getGzipETag() : entry.eTag;
+        resp.setHeader("ETag", eTag);
+        resp.addHeader("Vary", "Accept-Encoding");
+        if (matches(req.getHeader("If-None-Match"), eTag)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        resp.setContentType(entry.contentType);
+        if (gzip) {
+            resp.setHeader("Content-Encoding", "gzip");
+            resp.setContentLength(entry.body.length);
+            resp.getOutputStream().write(entry.body);
+        } else {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(entry.body))) {
+                ByteStreams.copy(in, resp.getOutputStream());
+            }
+        }
+    }
+
+    private static boolean matches(String ifNoneMatch, String eTag) {
+        if (null == ifNoneMatch) {
+            return false;
+        }
+        for (String candidate : Splitter.on(',').trimResults().split(ifNoneMatch)) {
+            if ("*".equals(candidate) || eTag.equals(candidate) || ("W/" + eTag).equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (null == acceptEncoding) {
+            return false;
+        }
+        for (String coding : Splitter.on(',').trimResults().split(acceptEncoding)) {
+            if (coding.equals("gzip") || (coding.startsWith("gzip;") && !coding.replace(" ", "").endsWith("q=0"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
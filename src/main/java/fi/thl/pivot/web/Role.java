@@ -16,6 +16,14 @@ public class Role {
         this.pwd = pwd;
     }
 
+    public Type getType() {
+        return type;
+    }
+
+    public String getPassword() {
+        return pwd;
+    }
+
     public boolean matches(List<String> passwords) {
         if (Type.Master.equals(type)) {
             return true;
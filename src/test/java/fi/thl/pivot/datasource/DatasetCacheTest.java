@@ -0,0 +1,75 @@
+package fi.thl.pivot.datasource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.thl.pivot.model.Dataset;
+import fi.thl.pivot.model.DimensionNode;
+
+public class DatasetCacheTest {
+
+    private DatasetCache cache;
+    private HydraSource source;
+    private DimensionNode a;
+    private DimensionNode b;
+    private int loads;
+
+    @Before
+    public void setup() {
+        cache = new DatasetCache(1024 * 1024);
+        source = mock(HydraSource.class);
+        when(source.getRunid()).thenReturn("1");
+        when(source.getId()).thenReturn("fact");
+        a = mockNode(1);
+        b = mockNode(2);
+    }
+
+    @Test
+    public void shouldNormalizeNodeOrder() {
+        DatasetCache.Key k1 = DatasetCache.key(source, "subset").addNodes("d", Arrays.asList(a, b, a)).build();
+        DatasetCache.Key k2 = DatasetCache.key(source, "subset").addNodes("d", Arrays.asList(b, a)).build();
+        DatasetCache.Key k3 = DatasetCache.key(source, "subset").addNodes("d", Arrays.asList(b)).build();
+        assertEquals(k1, k2);
+        assertNotEquals(k1, k3);
+    }
+
+    @Test
+    public void shouldLoadOncePerRun() {
+        DatasetCache.Key key = DatasetCache.key(source, "subset").add("vt", false).build();
+        Dataset first = cache.get(key, loader());
+        assertSame(first, cache.get(key, loader()));
+        assertEquals(1, loads);
+
+        when(source.getRunid()).thenReturn("2");
+        DatasetCache.Key next = DatasetCache.key(source, "subset").add("vt", false).build();
+        assertNotEquals(key, next);
+        assertNotSame(first, cache.get(next, loader()));
+        assertEquals(2, loads);
+    }
+
+    private DimensionNode mockNode(int surrogateId) {
+        DimensionNode node = mock(DimensionNode.class);
+        when(node.getSurrogateId()).thenReturn(surrogateId);
+        return node;
+    }
+
+    private Callable<Dataset> loader() {
+        return new Callable<Dataset>() {
+            @Override
+            public Dataset call() {
+                ++loads;
+                return new Dataset();
+            }
+        };
+    }
+}
@@ -2,6 +2,8 @@ package fi.thl.pivot.datasource;
 
 import java.io.IOException;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.sql.DataSource;
 
@@ -42,6 +44,16 @@ public class HsqlTestConfiguration {
         return new JdbcTemplate(dataSource);
     }
 
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService sourceRefreshExecutor() {
+        return Executors.newFixedThreadPool(2);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService metadataLoader() {
+        return Executors.newFixedThreadPool(6);
+    }
+
     @Bean
     public AmorDao dao() {
         return new AmorDao();
@@ -1,23 +1,54 @@
 package fi.thl.pivot.datasource;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
+import javax.sql.DataSource;
+
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import fi.thl.pivot.model.Dimension;
 import fi.thl.pivot.model.DimensionNode;
+import fi.thl.pivot.util.ThreadRole;
+import fi.thl.pivot.web.Role;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @ContextConfiguration(classes = { HsqlTestConfiguration.class })
@@ -29,20 +60,50 @@ public class HydraSourceTest {
     @Autowired
     private AmorDao dao;
 
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    @Qualifier("queries")
+    private Properties queries;
+
     private HydraSource source;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void loadSource() {
         source = dao.loadSource("test", "a-subject.test-hydra.fact.1003");
         source.loadMetadata();
     }
 
+    @After
+    public void clearRole() {
+        ThreadRole.setRole(null);
+    }
+
     @Test
     public void shouldLoadSource() {
         assertNotNull("Source not loaded", source);
         assertTrue("Metadata not loaded", source.isMetadataLoaded());
     }
 
+    @Test
+    public void shouldNotReloadLoadedMetadata() throws Exception {
+        final DimensionNode loaded = source.findNodeByRef("https://sampo.thl.fi/meta/aika/vuosi/2016");
+        Thread prefetch = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                source.loadMetadata();
+            }
+        });
+        prefetch.start();
+        source.loadMetadata(1, TimeUnit.MINUTES);
+        prefetch.join();
+        assertSame(loaded, source.findNodeByRef("https://sampo.thl.fi/meta/aika/vuosi/2016"));
+    }
+
     @Test
     public void shouldLoadFactMeadata() {
         assertEquals(1, source.getLanguages().size());
@@ -102,6 +163,84 @@ public class HydraSourceTest {
         assertEquals("time", node.getDimension().getId());
     }
 
+    @Test
+    public void shouldResolveNodesBySurrogateId() {
+        assertSame(source.getDimension("time").getRootNode(), source.resolve("5"));
+        assertNull(source.resolve("2147483647"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNonNumericSurrogateIds() {
+        source.resolve("5a");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectSurrogateIdsOutOfRange() {
+        source.resolve("2147483648");
+    }
+
+    @Test
+    public void shouldFindNodesByRefAndNameWithRoleOfCaller() {
+        String ref = "https://sampo.thl.fi/meta/aika/vuosi/2016";
+        source.findNodeByRef(ref).setPassword("node password");
+
+        // Indexes built by a user that cannot access the node
+        ThreadRole.setRole(new Role(Role.Type.Regular, "other password"));
+        assertNull(source.findNodeByRef(ref));
+        assertNull(source.findNodeByName("2016", "fi"));
+
+        ThreadRole.setRole(new Role(Role.Type.Regular, "node password"));
+        assertNotNull(source.findNodeByRef(ref));
+        assertNotNull(source.findNodeByName("2016", "fi"));
+
+        ThreadRole.setRole(new Role(Role.Type.Master, "Test password"));
+        assertNotNull(source.findNodeByRef(ref));
+        assertNotNull(source.findNodeByName("2016", "fi"));
+    }
+
+    @Test
+    public void shouldIndexNodesByRefRegardlessOfRoleOfLoader() throws IOException {
+        String ref = "https://sampo.thl.fi/meta/aika/vuosi/2016";
+        source.findNodeByRef(ref).setPassword("node password");
+        MetadataSnapshot snapshot = new MetadataSnapshot(folder.newFolder("snapshots"));
+        snapshot.write(source);
+
+        ThreadRole.setRole(new Role(Role.Type.Regular, "other password"));
+        assertTrue(snapshot.read(source));
+        assertNull(source.findNodeByRef(ref));
+
+        ThreadRole.setRole(new Role(Role.Type.Regular, "node password"));
+        assertNotNull(source.findNodeByRef(ref));
+    }
+
+    @Test
+    public void shouldSearchNodesWithRoleOfCaller() {
+        DimensionNode year = source.findNodeByRef("https://sampo.thl.fi/meta/aika/vuosi/2016");
+        year.setPassword("node password");
+
+        // Index built by a user that cannot access the node
+        ThreadRole.setRole(new Role(Role.Type.Regular, "other password"));
+        assertTrue(source.searchNodes("20", "fi", null, 10).isEmpty());
+
+        ThreadRole.setRole(new Role(Role.Type.Regular, "node password"));
+        assertEquals(Arrays.asList(year), source.searchNodes("20", "fi", null, 10));
+
+        ThreadRole.setRole(new Role(Role.Type.Master, "Test password"));
+        assertEquals(Arrays.asList(year), source.searchNodes("20", "fi", "time", 10));
+    }
+
+    @Test
+    public void shouldResolveLanguagesCubeDoesNotHave() {
+        assertEquals("fi", source.resolveLanguage("fi"));
+        assertEquals("fi", source.resolveLanguage("xx"));
+        assertEquals("fi", source.resolveLanguage(null));
+
+        // Labels missing in the language would otherwise all be indexed as "n/a"
+        assertEquals(source.searchNodes("k", "fi", null, 10), source.searchNodes("k", "xx", null, 10));
+        assertEquals("Helsinki", source.searchNodes("hel", "xx", null, 10).get(0).getLabel().getValue("fi"));
+        assertNotNull(source.findNodeByName("2016", "xx"));
+    }
+
     @Test
     public void shouldSortNodesBySortPredicate() {
         List<DimensionNode> nodes = source.getDimension("region").getLevel("leaf").getNodes();
@@ -121,4 +260,79 @@ public class HydraSourceTest {
         DimensionNode second = source.findNodeByRef("https://sampo.thl.fi/meta/test/mittari/2");
         assertEquals("decimals set even though illegal metadata value", 0, second.getDecimals());
     }
+
+    @Test
+    public void shouldRestoreMetadataFromSnapshot() throws IOException {
+        MetadataSnapshot snapshot = new MetadataSnapshot(folder.newFolder("snapshots"));
+        DimensionNode loaded = source.findNodeByRef("https://sampo.thl.fi/meta/aika/vuosi/2016");
+        snapshot.write(source);
+        assertTrue(snapshot.read(source));
+
+        DimensionNode restored = source.findNodeByRef("https://sampo.thl.fi/meta/aika/vuosi/2016");
+        assertNotSame(loaded, restored);
+        assertEquals(loaded.getSurrogateId(), restored.getSurrogateId());
+        assertSame(restored, source.getNode(restored.getId()));
+        assertSame(source.getDimension("time").getRootNode(), restored.getParent());
+        assertEquals("Test fact", source.getName().getValue("fi"));
+        assertTrue(source.isMasterPassword("Test password"));
+        assertEquals(3, source.getColumns().size());
+        assertEquals(3, source.getDimensionsAndMeasures().size());
+        assertEquals(2, source.getDimension("measure").getRootNode().getDecimals());
+
+        List<DimensionNode> nodes = source.getDimension("region").getLevel("leaf").getNodes();
+        assertEquals("Espoo", nodes.get(0).getLabel().getValue("fi"));
+        assertEquals("Vantaa", nodes.get(2).getLabel().getValue("fi"));
+    }
+
+    @Test
+    public void shouldWriteSnapshotsReadableByOwnerOnly() throws IOException {
+        File directory = folder.newFolder("snapshots");
+        assumeTrue(Files.getFileStore(directory.toPath()).supportsFileAttributeView("posix"));
+        new MetadataSnapshot(directory).write(source);
+
+        File file = new File(directory, source.getId() + ".meta");
+        assertEquals(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE), Files.getPosixFilePermissions(file.toPath()));
+    }
+
+    @Test
+    public void shouldReplaceCorruptSnapshotWithLoadedMetadata() throws IOException {
+        File directory = folder.newFolder("snapshots");
+        MetadataSnapshot snapshot = new MetadataSnapshot(directory);
+        snapshot.write(source);
+
+        // A negative dimension count after the header
+        File file = new File(directory, source.getId() + ".meta");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(8);
+            raf.writeInt(-1);
+        }
+        assertFalse(snapshot.read(source));
+        assertFalse(file.exists());
+
+        JDBCSource restored = new JDBCSource(source.getId(), "fact", dataSource, queries, "amor_test.x1003_fact", "amor_test.x1003_tree",
+                "amor_test.x1003_meta", "test");
+        restored.setMetadataSnapshot(snapshot);
+        restored.loadMetadata();
+        assertNotNull(restored.getDimension("time"));
+        assertTrue(snapshot.read(source));
+    }
+
+    @Test
+    public void shouldRestoreKeyColumnTypesFromSnapshot() throws Exception {
+        MetadataSnapshot snapshot = new MetadataSnapshot(folder.newFolder("snapshots"));
+        snapshot.write(source);
+
+        JDBCSource restored = new JDBCSource(source.getId(), "fact", dataSource, queries, "amor_test.x1003_fact", "amor_test.x1003_tree",
+                "amor_test.x1003_meta", "test");
+        restored.setMetadataSnapshot(snapshot);
+        restored.loadMetadata();
+        assertTrue(source.getSourceMetadata().containsKey("time_key"));
+        assertEquals(source.getSourceMetadata(), restored.getSourceMetadata());
+
+        FactQuery query = restored.buildFactQuery(new ArrayList<DimensionNode>(), Arrays.asList(restored.getDimension("time").getRootNode()), false);
+        Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+        query.createPreparedStatement(connection);
+        verify(connection).createArrayOf(eq(source.getSourceMetadata().get("time_key")), any(Object[].class));
+    }
 }
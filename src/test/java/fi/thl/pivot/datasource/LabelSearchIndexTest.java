@@ -0,0 +1,75 @@
+package fi.thl.pivot.datasource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.thl.pivot.model.Dimension;
+import fi.thl.pivot.model.DimensionLevel;
+import fi.thl.pivot.model.DimensionNode;
+import fi.thl.pivot.model.Label;
+import fi.thl.pivot.util.ThreadRole;
+import fi.thl.pivot.web.Role;
+
+public class LabelSearchIndexTest {
+
+    private DimensionNode helsinki;
+    private DimensionNode eastHelsinki;
+    private DimensionNode espoo;
+    private DimensionNode year;
+    private LabelSearchIndex index;
+
+    @Before
+    public void setup() {
+        Dimension region = new Dimension("region", Label.create("fi", "Alue"), Label.create("fi", "Kaikki alueet"));
+        DimensionLevel municipality = region.getRootLevel().addLevel("municipality");
+        eastHelsinki = municipality.createNode("1", Label.create("fi", "Itä-Helsinki"), region.getRootNode());
+        eastHelsinki.setSurrogateId(1);
+        helsinki = municipality.createNode("2", Label.create("fi", "Helsinki"), region.getRootNode());
+        helsinki.setSurrogateId(2);
+        espoo = municipality.createNode("3", Label.create("fi", "Espoo"), region.getRootNode());
+        espoo.setSurrogateId(3);
+        espoo.setPassword("secret");
+
+        Dimension time = new Dimension("time", Label.create("fi", "Aika"), Label.create("fi", "Kaikki vuodet"));
+        year = time.getRootLevel().addLevel("year").createNode("4", Label.create("fi", "Helmikuu 2016"), time.getRootNode());
+        year.setSurrogateId(4);
+
+        index = new LabelSearchIndex(Arrays.asList(eastHelsinki, helsinki, espoo, year), "fi");
+    }
+
+    @After
+    public void clearRole() {
+        ThreadRole.setRole(null);
+    }
+
+    @Test
+    public void shouldReturnLabelMatchesBeforeWordMatches() {
+        assertEquals(Arrays.asList(year, helsinki, eastHelsinki), index.search("hel", null, 10));
+        assertEquals(Arrays.asList(helsinki, eastHelsinki), index.search(" HELSINKI", null, 10));
+    }
+
+    @Test
+    public void shouldLimitResults() {
+        assertEquals(Arrays.asList(year, helsinki), index.search("hel", null, 2));
+        assertTrue(index.search("", null, 10).isEmpty());
+    }
+
+    @Test
+    public void shouldRestrictSearchToDimension() {
+        assertEquals(Arrays.asList(helsinki, eastHelsinki), index.search("hel", "region", 10));
+        assertEquals(Arrays.asList(year), index.search("2016", "time", 10));
+    }
+
+    @Test
+    public void shouldOnlyReturnAccessibleNodes() {
+        assertTrue(index.search("esp", null, 10).isEmpty());
+        ThreadRole.setRole(new Role(Role.Type.Regular, "secret"));
+        assertEquals(Arrays.asList(espoo), index.search("esp", null, 10));
+    }
+}
@@ -0,0 +1,51 @@
+package fi.thl.pivot.datasource;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import fi.thl.pivot.model.DimensionNode;
+
+public class NodeIndexTest {
+
+    @Test
+    public void shouldIndexSequentialIdsDensely() {
+        DimensionNode a = node(1);
+        DimensionNode b = node(7);
+        NodeIndex index = new NodeIndex(Arrays.asList(a, b));
+
+        assertTrue(index.isDense());
+        assertSame(a, index.get(1));
+        assertSame(b, index.get(7));
+        assertNull(index.get(0));
+        assertNull(index.get(8));
+        assertNull(index.get(-1));
+    }
+
+    @Test
+    public void shouldPackSparseIds() {
+        DimensionNode a = node(3);
+        DimensionNode b = node(Integer.MAX_VALUE);
+        DimensionNode c = node(-5);
+        NodeIndex index = new NodeIndex(Arrays.asList(a, b, c));
+
+        assertFalse(index.isDense());
+        assertSame(a, index.get(3));
+        assertSame(b, index.get(Integer.MAX_VALUE));
+        assertSame(c, index.get(-5));
+        assertNull(index.get(4));
+    }
+
+    private static DimensionNode node(int surrogateId) {
+        DimensionNode node = mock(DimensionNode.class);
+        when(node.getSurrogateId()).thenReturn(surrogateId);
+        return node;
+    }
+}
@@ -0,0 +1,75 @@
+package fi.thl.pivot.datasource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class SourceRegistryTest {
+
+    private static final class ManualTicker extends Ticker {
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+
+    private ManualTicker ticker;
+    private SourceRegistry registry;
+    private String latestRun;
+    private int runLoads;
+    private int sourceLoads;
+
+    @Before
+    public void setup() {
+        ticker = new ManualTicker();
+        latestRun = "1";
+        registry = new SourceRegistry(new SourceRegistry.Loader() {
+
+            @Override
+            public String loadLatestRun(String environment, String subject, String hydra, String fact) {
+                ++runLoads;
+                return latestRun;
+            }
+
+            @Override
+            public HydraSource loadSource(String environment, String subject, String hydra, String fact, String runId) {
+                ++sourceLoads;
+                return "0".equals(runId) ? null : mock(HydraSource.class);
+            }
+        }, 1000, TimeUnit.SECONDS.toNanos(60), ticker, MoreExecutors.directExecutor());
+    }
+
+    @Test
+    public void shouldResolveLatestRunOncePerRefreshInterval() {
+        assertEquals("1", registry.getLatestRun("test", "s", "h", "f"));
+        latestRun = "2";
+        assertEquals("1", registry.getLatestRun("test", "s", "h", "f"));
+        assertEquals(1, runLoads);
+
+        ticker.nanos += TimeUnit.SECONDS.toNanos(61);
+        assertEquals("2", registry.getLatestRun("test", "s", "h", "f"));
+        assertEquals(2, runLoads);
+    }
+
+    @Test
+    public void shouldShareSourcesButNotCacheMissingSources() {
+        HydraSource source = registry.getSource("test", "s", "h", "f", "1");
+        assertSame(source, registry.getSource("test", "s", "h", "f", "1"));
+        assertEquals(1, sourceLoads);
+
+        assertNull(registry.getSource("test", "s", "h", "f", "0"));
+        assertNull(registry.getSource("test", "s", "h", "f", "0"));
+        assertEquals(3, sourceLoads);
+    }
+}
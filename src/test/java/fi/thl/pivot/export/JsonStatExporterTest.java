@@ -0,0 +1,211 @@
+package fi.thl.pivot.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ui.ExtendedModelMap;
+import org.springframework.ui.Model;
+
+import fi.thl.pivot.model.Dimension;
+import fi.thl.pivot.model.DimensionLevel;
+import fi.thl.pivot.model.DimensionNode;
+import fi.thl.pivot.model.Label;
+import fi.thl.pivot.model.Pivot;
+import fi.thl.pivot.model.PivotCell;
+import fi.thl.pivot.model.PivotLevel;
+
+public class JsonStatExporterTest {
+
+    private List<PivotLevel> rows;
+    private List<PivotLevel> columns;
+    private List<PivotCell> cells;
+    private Model model;
+
+    @Before
+    public void setup() {
+        rows = new ArrayList<>();
+        columns = new ArrayList<>();
+        cells = new ArrayList<>();
+        model = new ExtendedModelMap();
+        model.addAttribute("cubeLabel", Label.create("fi", "cube"));
+    }
+
+    @Test
+    public void shouldMakeDuplicateDimensionIdsUnique() throws IOException {
+        rows.add(level("area", "a1", "a2"));
+        columns.add(level("area", "b1"));
+        columns.add(level("area", "c1"));
+
+        JSONObject dimension = export().getJSONObject("dimension");
+
+        assertEquals(Arrays.<Object> asList("area", "area1", "area2"), dimension.getJSONArray("id").toList());
+        assertEquals(1, dimension.getJSONObject("area").getJSONObject("category").getJSONObject("index").getInt("a2"));
+        assertEquals(0, dimension.getJSONObject("area1").getJSONObject("category").getJSONObject("index").getInt("b1"));
+        assertEquals(0, dimension.getJSONObject("area2").getJSONObject("category").getJSONObject("index").getInt("c1"));
+    }
+
+    @Test
+    public void shouldKeepLevelIdsAlignedWhenLevelIsEmpty() throws IOException {
+        rows.add(level("area"));
+        rows.add(level("time", "2015"));
+        columns.add(level("measure", "m1"));
+
+        JSONObject dimension = export().getJSONObject("dimension");
+
+        assertEquals(Arrays.<Object> asList("area", "time", "measure"), dimension.getJSONArray("id").toList());
+        assertFalse(dimension.has("area"));
+        assertTrue(dimension.getJSONObject("time").getJSONObject("category").getJSONObject("index").has("2015"));
+        assertTrue(dimension.getJSONObject("measure").getJSONObject("category").getJSONObject("index").has("m1"));
+    }
+
+    @Test
+    public void shouldWriteValuesAsArrayWhenHalfOfCellsHaveValue() throws IOException {
+        rows.add(level("area", "a1", "a2"));
+        columns.add(level("time", "t1", "t2"));
+        cells.add(cell(0, "1,5"));
+        cells.add(cell(3, "2"));
+
+        JSONArray value = export().getJSONArray("value");
+
+        assertEquals(4, value.length());
+        assertEquals(1.5, value.getDouble(0), 0.0);
+        assertTrue(value.isNull(1));
+        assertTrue(value.isNull(2));
+        assertEquals(2, value.getInt(3));
+    }
+
+    @Test
+    public void shouldWriteValuesAsObjectWhenLessThanHalfOfCellsHaveValue() throws IOException {
+        rows.add(level("area", "a1", "a2"));
+        columns.add(level("time", "t1", "t2", "t3"));
+        cells.add(cell(1, "1"));
+        cells.add(cell(5, "2"));
+
+        JSONObject value = export().getJSONObject("value");
+
+        assertEquals(2, value.length());
+        assertEquals(1, value.getInt("1"));
+        assertEquals(2, value.getInt("5"));
+    }
+
+    @Test
+    public void shouldWriteMarkersInStatus() throws IOException {
+        rows.add(level("area", "a1", "a2", "a3"));
+        cells.add(cell(0, "1,5"));
+        cells.add(cell(1, ".."));
+        cells.add(cell(2, "-2e3"));
+
+        JSONObject dataset = export();
+
+        JSONArray value = dataset.getJSONArray("value");
+        assertEquals(1.5, value.getDouble(0), 0.0);
+        assertTrue(value.isNull(1));
+        assertEquals(-2000, value.getInt(2));
+        JSONObject status = dataset.getJSONObject("status");
+        assertEquals(1, status.length());
+        assertEquals("..", status.getString("1"));
+    }
+
+    @Test
+    public void shouldWriteEmptyArrayWhenNoCellHasValue() throws IOException {
+        rows.add(level("area", "a1"));
+        cells.add(cell(0, null));
+
+        assertEquals(0, export().getJSONArray("value").length());
+    }
+
+    @Test
+    public void shouldMultiplyPositionsWhenValueTypesAreShown() throws IOException {
+        rows.add(level("area", "a1", "a2", "a3"));
+        PivotCell withLimits = cell(2, "10");
+        when(withLimits.getConfidenceLowerLimit()).thenReturn("8");
+        when(withLimits.getConfidenceUpperLimit()).thenReturn("12");
+        when(withLimits.getSampleSize()).thenReturn("100");
+        cells.add(withLimits);
+        cells.add(cell(0, "5"));
+        model.addAttribute("showCi", true);
+
+        JSONObject dataset = export();
+
+        JSONObject dimension = dataset.getJSONObject("dimension");
+        assertEquals(Arrays.<Object> asList("area", "tiku_vtype"), dimension.getJSONArray("id").toList());
+        assertEquals(Arrays.<Object> asList(3, 4), dimension.getJSONArray("size").toList());
+        assertEquals(3, dimension.getJSONObject("tiku_vtype").getJSONObject("category").getJSONObject("index").getInt("n"));
+
+        JSONObject value = dataset.getJSONObject("value");
+        assertEquals(5, value.length());
+        assertEquals(10, value.getInt("8"));
+        assertEquals(8, value.getInt("9"));
+        assertEquals(12, value.getInt("10"));
+        assertEquals(100, value.getInt("11"));
+        assertEquals(5, value.getInt("0"));
+        assertFalse(dataset.has("status"));
+    }
+
+    @Test
+    public void shouldEscapeLabels() throws IOException {
+        String label = "\"quoted\" \\ tab\t\u0001 line\u2028end";
+        model.addAttribute("cubeLabel", Label.create("fi", label));
+        rows.add(level("area", "a\"1"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JSONObject dataset = export(out);
+
+        String json = out.toString("UTF-8");
+        assertFalse(json.contains("\u2028"));
+        assertTrue(json.contains("\\u2028"));
+        assertTrue(json.contains("\\u0001"));
+        assertEquals(label, dataset.getString("label"));
+        assertTrue(dataset.getJSONObject("dimension").getJSONObject("area").getJSONObject("category").getJSONObject("index").has("a\"1"));
+    }
+
+    private JSONObject export() throws IOException {
+        return export(new ByteArrayOutputStream());
+    }
+
+    private JSONObject export(ByteArrayOutputStream out) throws IOException {
+        Pivot pivot = mock(Pivot.class);
+        when(pivot.getRows()).thenReturn(rows);
+        when(pivot.getColumns()).thenReturn(columns);
+        when(pivot.iterator()).thenReturn(cells.iterator());
+        model.addAttribute("pivot", pivot);
+
+        new JsonStatExporter().export(model, out);
+        return new JSONObject(out.toString("UTF-8")).getJSONObject("dataset");
+    }
+
+    private static PivotCell cell(int position, String value) {
+        PivotCell cell = mock(PivotCell.class);
+        when(cell.getPosition()).thenReturn(position);
+        when(cell.getValue()).thenReturn(value);
+        return cell;
+    }
+
+    private static PivotLevel level(String dimensionId, String... nodeIds) {
+        Dimension dimension = new Dimension(dimensionId, Label.create("fi", dimensionId), Label.create("fi", "all"));
+        DimensionLevel level = dimension.getRootLevel().addLevel("level");
+        PivotLevel pivotLevel = new PivotLevel();
+        for (String id : nodeIds) {
+            pivotLevel.add(level.createNode(id, Label.create("fi", id), dimension.getRootNode()));
+        }
+        if (nodeIds.length == 0) {
+            // An empty level still knows its dimension
+            pivotLevel.add(dimension.getRootNode());
+            pivotLevel.retainAll(new ArrayList<DimensionNode>());
+        }
+        return pivotLevel;
+    }
+}
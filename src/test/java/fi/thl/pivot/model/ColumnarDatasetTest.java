@@ -0,0 +1,230 @@
+package fi.thl.pivot.model;
+
+import static fi.thl.pivot.model.ModelTestUtil.mockNode;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class ColumnarDatasetTest {
+
+    private ColumnarDataset dataset;
+    private Map<String, DimensionNode> nodes = Maps.newHashMap();
+
+    @Before
+    public void setup() {
+        this.dataset = new ColumnarDataset();
+    }
+
+    @Test
+    public void shouldHoldValues() {
+        assertValueIsPut("1", "A", "B");
+        assertValueIsPut("2", "A", "C");
+        assertValueIsPut("3", "B", "C");
+    }
+
+    @Test
+    public void shouldReplaceExistingValue() {
+        assertValueIsPut("1", "A", "B");
+        assertValueIsPut("2", "A", "B");
+        assertEquals(1, dataset.size());
+    }
+
+    @Test
+    public void shouldHandleNullValues() {
+        dataset.put(null, keys("A"));
+        assertNull(dataset.get(keys("A")));
+        assertValueIsPut("4", "A");
+    }
+
+    @Test
+    public void shouldIgnoreNullKeys() {
+        dataset.put("1", (List<DimensionNode>) null);
+        dataset.put("1", Collections.<DimensionNode> emptyList());
+        assertEquals(0, dataset.size());
+    }
+
+    @Test
+    public void shouldBeIndifferentToKeyOrder() {
+        assertValueIsPut("1", "A", "B");
+        assertValueIsPut("2", "B", "A");
+        assertEquals("2", dataset.get(keys("A", "B")));
+        assertEquals(1, dataset.size());
+    }
+
+    @Test
+    public void shouldPreserveStringRepresentationOfValues() {
+        String[] values = { "0", "-1", "12.5", "12,5", "0.10", "007", "-0", "1.0", "..", "", "-", "1e3", "12345678901234567890", "0.000001" };
+        for (int i = 0; i < values.length; ++i) {
+            dataset.put(values[i], keys("A", "V" + i));
+        }
+        for (int i = 0; i < values.length; ++i) {
+            assertEquals(values[i], dataset.get(keys("A", "V" + i)));
+        }
+    }
+
+    @Test
+    public void shouldReturnNullForMissingKeys() {
+        assertNull(dataset.get(keys("A", "B")));
+        dataset.put("1", keys("A", "B"));
+        assertNull(dataset.get(keys("A", "C")));
+        assertNull(dataset.get(keys("A")));
+        assertNull(dataset.get(keys("A", "B", "C")));
+    }
+
+    @Test
+    public void shouldResolveValuesWithSurrogateIds() {
+        List<DimensionNode> keys = keys("A", "B");
+        dataset.put("5", keys);
+        assertEquals("5", dataset.getWithIds(Arrays.asList(keys.get(1).getSurrogateId(), keys.get(0).getSurrogateId())));
+    }
+
+    @Test
+    public void shouldKeepLastValueWhenRowsAreAddedInAnyOrder() {
+        int rows = 5000;
+        for (int i = rows - 1; i >= 0; --i) {
+            dataset.put(String.valueOf(i), keys("R" + (i % 100), "C" + (i / 100)));
+        }
+        for (int i = 0; i < rows; i += 2) {
+            dataset.put("x" + i, keys("C" + (i / 100), "R" + (i % 100)));
+        }
+        assertEquals(rows, dataset.size());
+        for (int i = 0; i < rows; ++i) {
+            String expected = i % 2 == 0 ? "x" + i : String.valueOf(i);
+            assertEquals(expected, dataset.get(keys("R" + (i % 100), "C" + (i / 100))));
+        }
+    }
+
+    @Test
+    public void shouldResolveValuesWithReusedKeyBuffer() {
+        List<DimensionNode> keys = keys("A", "B", "C");
+        dataset.put("6", keys);
+        int[] buffer = new int[] { keys.get(2).getSurrogateId(), keys.get(0).getSurrogateId(), keys.get(1).getSurrogateId(), -1 };
+        assertEquals("6", dataset.getWithIds(buffer, 3));
+        assertEquals("6", dataset.getWithIds(buffer, 3));
+        assertNull(dataset.getWithIds(buffer, 2));
+        assertNull(dataset.getWithIds(buffer, 0));
+    }
+
+    @Test
+    public void shouldAppendBatchesOfRows() {
+        List<DimensionNode> a = keys("A", "B");
+        List<DimensionNode> b = keys("A", "C");
+        int[] ids = { a.get(1).getSurrogateId(), a.get(0).getSurrogateId(), b.get(0).getSurrogateId(), b.get(1).getSurrogateId(),
+                a.get(0).getSurrogateId(), a.get(1).getSurrogateId() };
+        dataset.append(ids, 2, new String[] { "1", "2", null }, 3);
+        dataset.append(new int[] { b.get(1).getSurrogateId(), b.get(0).getSurrogateId() }, 2, new String[] { "3" }, 1);
+        assertEquals(2, dataset.size());
+        assertEquals("1", dataset.get(a));
+        assertEquals("3", dataset.get(b));
+    }
+
+    @Test
+    public void shouldBeReadableAsMappedDataset() throws IOException {
+        assertValueIsPut("1", "A", "B");
+        assertValueIsPut("2,5", "A", "C");
+        assertValueIsPut("..", "B", "C");
+        assertValueIsPut("0.10", "B", "D");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        dataset.writeTo(new DataOutputStream(bytes));
+
+        MappedDataset mapped = new MappedDataset(ByteBuffer.wrap(bytes.toByteArray()));
+        assertEquals(4, mapped.size());
+        assertEquals("1", mapped.get(keys("B", "A")));
+        assertEquals("2,5", mapped.get(keys("A", "C")));
+        assertEquals("..", mapped.get(keys("B", "C")));
+        assertNull(mapped.get(keys("A", "D")));
+        int index = mapped.indexOf(new int[] { nodes.get("D").getSurrogateId(), nodes.get("B").getSurrogateId() }, 2);
+        assertEquals("0.10", mapped.valueAt(index));
+        assertEquals(0.1, mapped.numberAt(index), 0.0);
+
+        MappedDataset subset = mapped.select(new int[] { nodes.get("B").getSurrogateId(), nodes.get("C").getSurrogateId() }, 2);
+        assertEquals(1, subset.size());
+        assertEquals("..", subset.get(keys("B", "C")));
+        assertNull(subset.get(keys("A", "B")));
+        assertEquals(3, mapped.select(new int[] { nodes.get("D").getSurrogateId(), nodes.get("C").getSurrogateId() }, 1).size());
+    }
+
+    @Test
+    public void shouldParseNumericValues() {
+        String[] values = { "0", "-1", "12.5", "12,5", "0.10", "-0", ".5", "..", "", "-", "1e3" };
+        double[] numbers = { 0, -1, 12.5, 12.5, 0.1, -0.0, 0.5 };
+        for (int i = 0; i < values.length; ++i) {
+            dataset.put(values[i], keys("A", "V" + i));
+        }
+        for (int i = 0; i < values.length; ++i) {
+            List<DimensionNode> keys = keys("A", "V" + i);
+            int index = dataset.indexOf(new int[] { keys.get(0).getSurrogateId(), keys.get(1).getSurrogateId() }, 2);
+            if (i < numbers.length) {
+                assertTrue(values[i], dataset.isNumberAt(index));
+                assertEquals(values[i], numbers[i], dataset.numberAt(index), 0.0);
+            } else {
+                assertFalse(values[i], dataset.isNumberAt(index));
+            }
+        }
+    }
+
+    @Test
+    public void shouldStoreFixedDecimalValuesAsNumbers() throws IOException {
+        String[] values = { "12.0", "0.10", "3.50", "3,50", "-0.05", "12345678.5", "100000000.25", "0.000000000000001", ".." };
+        for (int i = 0; i < values.length; ++i) {
+            dataset.put(values[i], keys("A", "V" + i));
+        }
+        for (int i = 0; i < values.length; ++i) {
+            assertEquals(values[i], dataset.get(keys("A", "V" + i)));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        dataset.writeTo(new DataOutputStream(bytes));
+        ByteBuffer header = ByteBuffer.wrap(bytes.toByteArray());
+        header.getInt();
+        header.getInt();
+        assertEquals(values.length, header.getInt());
+        // Only the '..' marker is stored in the side table
+        assertEquals(1, header.getInt());
+
+        MappedDataset mapped = new MappedDataset(ByteBuffer.wrap(bytes.toByteArray()));
+        for (int i = 0; i < values.length; ++i) {
+            assertEquals(values[i], mapped.get(keys("A", "V" + i)));
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void shouldNotParseMarkers() {
+        List<DimensionNode> keys = keys("A", "B");
+        dataset.put("..", keys);
+        dataset.numberAt(dataset.indexOf(new int[] { keys.get(0).getSurrogateId(), keys.get(1).getSurrogateId() }, 2));
+    }
+
+    private void assertValueIsPut(String value, String... key) {
+        List<DimensionNode> keys = keys(key);
+        dataset.put(value, keys);
+        assertEquals(value, dataset.get(keys));
+    }
+
+    private List<DimensionNode> keys(String... key) {
+        List<DimensionNode> keys = Lists.newArrayList();
+        for (String k : key) {
+            if (!nodes.containsKey(k)) {
+                nodes.put(k, mockNode(k));
+            }
+            keys.add(nodes.get(k));
+        }
+        return keys;
+    }
+}
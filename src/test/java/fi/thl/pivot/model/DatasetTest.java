@@ -55,6 +55,29 @@ public class DatasetTest {
         assertEquals("2", dataset.get(keys("A", "B")));
     }
 
+    @Test
+    public void shouldResolveValuesWithReusedKeyBuffer() {
+        List<DimensionNode> keys = keys("A", "B", "C");
+        dataset.put("6", keys);
+        int[] buffer = new int[] { keys.get(2).getSurrogateId(), keys.get(0).getSurrogateId(), keys.get(1).getSurrogateId(), -1 };
+        assertEquals("6", dataset.getWithIds(buffer, 3));
+        assertEquals("6", dataset.getWithIds(buffer, 3));
+        assertNull(dataset.getWithIds(buffer, 2));
+        assertNull(dataset.getWithIds(buffer, 0));
+    }
+
+    @Test
+    public void shouldParseNumericValues() {
+        List<DimensionNode> keys = keys("A", "B");
+        dataset.put("12,5", keys);
+        int index = dataset.indexOf(new int[] { keys.get(0).getSurrogateId(), keys.get(1).getSurrogateId() }, 2);
+        assertTrue(dataset.isNumberAt(index));
+        assertEquals(12.5, dataset.numberAt(index), 0.0);
+
+        dataset.put("..", keys);
+        assertFalse(dataset.isNumberAt(index));
+    }
+
     private void assertValueIsPut(String value, String... key) {
         List<DimensionNode> keys = keys(key);
         dataset.put(value, keys);
@@ -0,0 +1,104 @@
+package fi.thl.pivot.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.thl.pivot.util.ThreadRole;
+import fi.thl.pivot.web.Role;
+
+public class DimensionNodeTest {
+
+    private Dimension region;
+    private DimensionNode root;
+    private DimensionNode uusimaa;
+    private DimensionNode helsinki;
+    private DimensionNode lappi;
+
+    @Before
+    public void setup() {
+        region = new Dimension("region", Label.create("fi", "Alue"), Label.create("fi", "Kaikki"));
+        root = region.getRootNode();
+        root.setSurrogateId(1);
+        DimensionLevel area = region.getRootLevel().addLevel("area");
+        uusimaa = area.createNode("2", Label.create("fi", "Uusimaa"), root);
+        uusimaa.setSurrogateId(2);
+        lappi = area.createNode("3", Label.create("fi", "Lappi"), root);
+        lappi.setSurrogateId(3);
+        helsinki = area.addLevel("municipality").createNode("4", Label.create("fi", "Helsinki"), uusimaa);
+        helsinki.setSurrogateId(4);
+        uusimaa.setSort("fi", 2L);
+        lappi.setSort("fi", 1L);
+        lappi.setPassword("secret");
+    }
+
+    @After
+    public void clearRole() {
+        ThreadRole.setRole(null);
+    }
+
+    @Test
+    public void shouldCreatePropertiesInLabelStoreOfNode() {
+        LabelStore store = new LabelStore();
+        DimensionNode espoo = region.getRootLevel().getChildLevel().createNode("5", store.create(), root);
+        espoo.getLabel().setValue("fi", "Espoo");
+
+        espoo.setProperty("comment", "fi", "Kommentti");
+        espoo.setProperty("comment", "sv", "Kommentar");
+
+        assertEquals(2, store.size());
+        assertEquals("Espoo", espoo.getLabel().getValue("fi"));
+        Map.Entry<String, Label> property = espoo.getProperties().iterator().next();
+        assertEquals("comment", property.getKey());
+        assertEquals("Kommentti", property.getValue().getValue("fi"));
+        assertEquals("Kommentar", property.getValue().getValue("sv"));
+    }
+
+    @Test
+    public void shouldTestAncestorsWithoutIndex() {
+        assertHierarchy();
+    }
+
+    @Test
+    public void shouldTestAncestorsWithIndex() {
+        region.indexHierarchy();
+        assertHierarchy();
+    }
+
+    private void assertHierarchy() {
+        assertTrue(root.ancestorOf(helsinki));
+        assertTrue(uusimaa.ancestorOf(helsinki));
+        assertTrue(helsinki.ancestorOf(helsinki));
+        assertFalse(lappi.ancestorOf(helsinki));
+        assertFalse(helsinki.ancestorOf(uusimaa));
+
+        assertTrue(helsinki.descendentOf(root));
+        assertTrue(helsinki.descendentOf(uusimaa));
+        assertFalse(helsinki.descendentOf(helsinki));
+        assertFalse(helsinki.descendentOf(lappi));
+        assertFalse(root.descendentOf(helsinki));
+    }
+
+    @Test
+    public void shouldFilterChildrenByRole() {
+        assertEquals(Arrays.asList(uusimaa), root.getChildren());
+
+        ThreadRole.setRole(new Role(Role.Type.Regular, "secret"));
+        assertEquals(Arrays.asList(lappi, uusimaa), root.getChildren());
+
+        ThreadRole.setRole(new Role(Role.Type.Regular, "other"));
+        assertEquals(Arrays.asList(uusimaa), root.getChildren());
+        assertEquals(Collections.emptyList(), lappi.getChildren());
+
+        ThreadRole.setRole(new Role(Role.Type.Master, null));
+        assertEquals(Arrays.asList(lappi, uusimaa), root.getChildren());
+    }
+}
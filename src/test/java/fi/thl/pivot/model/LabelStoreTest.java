@@ -0,0 +1,54 @@
+package fi.thl.pivot.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class LabelStoreTest {
+
+    @Test
+    public void shouldFallBackToDefaultLanguage() {
+        LabelStore store = new LabelStore();
+        Label label = store.create();
+        label.setValue("fi", "Alue");
+        label.setValue(null, "Region");
+
+        assertEquals("Alue", label.getValue("fi"));
+        assertEquals("Region", label.getValue("sv"));
+        assertEquals("n/a", store.create().getValue("fi"));
+    }
+
+    @Test
+    public void shouldKeepExplicitNullValues() {
+        Label label = new LabelStore().create();
+        label.setValue("fi", null);
+        label.setValue("default", "Alue");
+
+        assertNull(label.getValue("fi"));
+        Map<String, String> expected = new HashMap<>();
+        expected.put("fi", null);
+        expected.put("default", "Alue");
+        assertEquals(expected, label.asMap());
+    }
+
+    @Test
+    public void shouldShareStringsBetweenLabels() {
+        LabelStore store = new LabelStore();
+        Label first = null;
+        Label last = null;
+        for (int i = 0; i < 5000; ++i) {
+            last = store.create();
+            last.setValue("fi", new String("Kaikki"));
+            if (null == first) {
+                first = last;
+            }
+        }
+        assertEquals(5000, store.size());
+        assertSame(first.getValue("fi"), last.getValue("fi"));
+    }
+}
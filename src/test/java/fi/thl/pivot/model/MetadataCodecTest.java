@@ -0,0 +1,80 @@
+package fi.thl.pivot.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MetadataCodecTest {
+
+    @Test
+    public void shouldRestoreDimensionTrees() throws IOException {
+        Dimension region = new Dimension("region", Label.create("fi", "Alue"), Label.create("fi", "Kaikki"));
+        DimensionNode root = region.getRootNode();
+        root.setId("1");
+        root.setSurrogateId(1);
+        DimensionLevel municipality = region.getRootLevel().addLevel("municipality");
+        DimensionNode helsinki = municipality.createNode("2", Label.create("fi", "Helsinki"), root);
+        helsinki.setSurrogateId(2);
+        helsinki.setSort("fi", 2L);
+        helsinki.setCode("091");
+        helsinki.setPassword("secret");
+        helsinki.setProperty("comment", "fi", "Pääkaupunki");
+        DimensionNode espoo = municipality.createNode("3", Label.create("sv", "Esbo"), root);
+        espoo.setSurrogateId(3);
+        espoo.setSort("fi", 1L);
+        espoo.addEdge("ci_upper", helsinki);
+        root.sortChildren(new Comparator<DimensionNode>() {
+            @Override
+            public int compare(DimensionNode o1, DimensionNode o2) {
+                return o1.getSort().compareTo(o2.getSort());
+            }
+        });
+
+        MetadataCodec.Writer writer = new MetadataCodec.Writer();
+        writer.writeDimensions(Arrays.asList(region));
+        writer.writeNodeReference(espoo);
+        writer.writeString("Alue");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer.writeTo(new DataOutputStream(bytes));
+
+        MetadataCodec.Reader reader = new MetadataCodec.Reader(ByteBuffer.wrap(bytes.toByteArray()));
+        List<Dimension> dimensions = reader.readDimensions();
+        DimensionNode restoredEspoo = reader.readNodeReference();
+        assertEquals("Alue", reader.readString());
+
+        assertEquals(1, dimensions.size());
+        Dimension restored = dimensions.get(0);
+        assertEquals("region", restored.getId());
+        assertEquals("Alue", restored.getLabel().getValue("fi"));
+        assertEquals("municipality", restored.getRootLevel().getChildLevel().getId());
+
+        DimensionNode restoredRoot = restored.getRootNode();
+        assertEquals("1", restoredRoot.getId());
+        assertEquals("Kaikki", restoredRoot.getLabel().getValue("fi"));
+        assertEquals(Arrays.asList(restoredEspoo, restoredRoot.getAllChildren().get(1)), restoredRoot.getAllChildren());
+        assertSame(restoredRoot, restoredEspoo.getParent());
+        assertSame(restoredEspoo.getDimension(), restored);
+
+        DimensionNode restoredHelsinki = restoredEspoo.getConfidenceUpperLimitNode();
+        assertEquals(2, restoredHelsinki.getSurrogateId());
+        assertEquals("091", restoredHelsinki.getCode());
+        assertEquals(Long.valueOf(2L), restoredHelsinki.getSort());
+        assertEquals(Arrays.asList("secret"), restoredHelsinki.getPasswords());
+        Map.Entry<String, Label> property = restoredHelsinki.getProperties().iterator().next();
+        assertEquals("comment", property.getKey());
+        assertEquals("Pääkaupunki", property.getValue().getValue("fi"));
+        assertEquals("Esbo", restoredEspoo.getLabel().getValue("sv"));
+        assertNull(restoredEspoo.getCode());
+    }
+}
@@ -3,15 +3,20 @@ package fi.thl.pivot.model;
 import static fi.thl.pivot.model.ModelTestUtil.mockDimension;
 import static fi.thl.pivot.model.ModelTestUtil.mockNode;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
 import fi.thl.pivot.web.tools.FilterEmpty;
@@ -128,6 +133,41 @@ public class PivotImplTest {
         assertEquals("1.2;2.3;3.3;4;5", pivot.getCellAt(2, 5).getValue());
     }
 
+    @Test
+    public void shouldMaterializeCells() {
+        dataset = new ColumnarDataset();
+        pivot = new ModifiablePivot(dataset);
+        addTestDimensions(mockNode("4"));
+
+        ((ModifiablePivot) pivot).materialize();
+
+        assertEquals("1.1;2.1;3.1;4", pivot.getCellAt(0, 0).getValue());
+        assertEquals("1.2;2.1;3.2;4", pivot.getCellAt(1, 3).getValue());
+        assertEquals("1.2;2.3;3.3;4", pivot.getCellAt(2, 5).getValue());
+    }
+
+    @Test
+    public void shouldLoadCellsByVisitedKeys() {
+        addTestDimensions(mockNode("4"));
+        final ModifiablePivot mPivot = (ModifiablePivot) pivot;
+        final ColumnarDataset cells = new ColumnarDataset();
+        final int[] visited = new int[1];
+        mPivot.visitCellKeys(new ModifiablePivot.CellKeyVisitor() {
+            @Override
+            public void visit(int[] key, int length) {
+                int[] copy = Arrays.copyOf(key, length);
+                cells.append(copy, length, new String[] { dataset.getWithIds(key, length) }, 1);
+                ++visited[0];
+            }
+        }, true);
+        mPivot.setDataset(cells);
+
+        assertEquals(18, visited[0]);
+        assertEquals(18, cells.size());
+        assertEquals("1.1;2.1;3.1;4", pivot.getCellAt(0, 0).getValue());
+        assertEquals("1.2;2.3;3.3;4", pivot.getCellAt(2, 5).getValue());
+    }
+
     @Test(expected = IndexOutOfBoundsException.class)
     public void shouldFilterAll() {
 
@@ -170,6 +210,12 @@ public class PivotImplTest {
 
         assertEquals("2.3", label(pivot.getColumnAt(1, 1)));
 
+        assertTrue(pivot.isFirstColumn(0));
+        assertTrue(pivot.isColumn(2, 1));
+        assertTrue(pivot.isColumn(5, 3));
+        assertFalse(pivot.isColumn(1, 1));
+        assertFalse(pivot.isColumn(4, -2));
+        assertEquals(1, pivot.getColumnNumber(2));
     }
 
     @Test
@@ -196,6 +242,41 @@ public class PivotImplTest {
         assertEquals("3.3", label(pivot.getRowAt(0, 1)));
     }
 
+    @Test
+    public void shouldFilterInParallel() {
+        int size = 30;
+        ArrayList<DimensionNode> rowNodes = Lists.newArrayList();
+        ArrayList<DimensionNode> columnNodes = Lists.newArrayList();
+        for (int i = 0; i < size; ++i) {
+            rowNodes.add(mockNode("r" + i, mockDimension("r")));
+            columnNodes.add(mockNode("c" + i, mockDimension("c")));
+        }
+        Dataset realDataset = new ColumnarDataset();
+        for (int i = 0; i < size; i += 3) {
+            realDataset.put("1", Lists.newArrayList(rowNodes.get(i), columnNodes.get((i * 7) % size)));
+        }
+        pivot = new ModifiablePivot(realDataset);
+        appendRow(rowNodes);
+        appendColumn(columnNodes);
+        ((ModifiablePivot) pivot).materialize();
+
+        FilterablePivot filtered = new FilterablePivot(pivot);
+        filtered.setParallelLimits(1, 16);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            filtered.applyFilters(ImmutableList.<Predicate<PivotCell>> of(new FilterEmpty()), pool);
+        } finally {
+            pool.shutdown();
+        }
+        pivot = filtered;
+
+        assertEquals(size / 3, pivot.getRowCount());
+        assertEquals(size / 3, pivot.getColumnCount());
+        for (int i = 0; i < pivot.getRowCount(); ++i) {
+            assertEquals("r" + (i * 3), pivot.getRowAt(0, i).getId());
+        }
+    }
+
     @Test
     public void shouldFilterNone() {
 
@@ -327,6 +408,30 @@ public class PivotImplTest {
         assertEquals("2.1", pivot.getRowAt(0, 1).getId());
     }
 
+    @Test
+    public void shouldOrderRowsWithMixedValues() {
+        Dataset realDataset = new Dataset();
+        DimensionNode column = mockNode("1.1");
+        ArrayList<DimensionNode> rowNodes = Lists.newArrayList(mockNode("3.1"), mockNode("3.2"), mockNode("3.3"), mockNode("3.4"), mockNode("3.5"));
+        realDataset.put("10", Lists.newArrayList(column, rowNodes.get(0)));
+        realDataset.put("..", Lists.newArrayList(column, rowNodes.get(1)));
+        realDataset.put("2", Lists.newArrayList(column, rowNodes.get(3)));
+        realDataset.put("1,5", Lists.newArrayList(column, rowNodes.get(4)));
+
+        pivot = new ModifiablePivot(realDataset);
+        appendColumn(Lists.newArrayList(column));
+        appendRow(rowNodes);
+
+        pivot = new OrderablePivot(pivot);
+        ((OrderablePivot) pivot).sortBy(0, OrderablePivot.SortBy.Column, OrderablePivot.SortMode.Ascending);
+
+        assertEquals("3.3", pivot.getRowAt(0, 0).getId());
+        assertEquals("3.2", pivot.getRowAt(0, 1).getId());
+        assertEquals("3.5", pivot.getRowAt(0, 2).getId());
+        assertEquals("3.4", pivot.getRowAt(0, 3).getId());
+        assertEquals("3.1", pivot.getRowAt(0, 4).getId());
+    }
+
     @Test
     public void shouldOrderColumns() {
         Dataset realDataset = new Dataset();